@@ -3,8 +3,12 @@ package com.bin.registry.server;
 
 
 import com.bin.registry.server.common.utils.PropertiesUtils;
+import com.bin.registry.server.core.cluster.Federation;
+import com.bin.registry.server.core.cluster.RegistryCluster;
+import com.bin.registry.server.core.persist.RegistryPersistence;
 import com.bin.registry.server.http.NettyHttpServer;
 
+import java.io.IOException;
 import java.util.Properties;
 
 /**
@@ -27,15 +31,161 @@ public class RegistryCenter {
 
     public static final String CONTEXT_PATH = "server.contextPath";
 
+    /**
+     * 实例存储: heap | offheap
+     */
+    public static final String STORE = "server.store";
+
+    /**
+     * 多久没有心跳标记为不健康(毫秒)
+     */
+    public static final String HEALTH_UNHEALTHY_MS = "server.health.unhealthyMs";
+
+    /**
+     * 多久没有心跳剔除(毫秒)
+     */
+    public static final String HEALTH_EVICT_MS = "server.health.evictMs";
+
+    /**
+     * phi-accrual 判定不健康的阈值, 不配置或为 0 时只按固定时长判定
+     */
+    public static final String HEALTH_PHI_THRESHOLD = "server.health.phiThreshold";
+
+    /**
+     * 时间轮最底层一格的时长(毫秒)
+     */
+    public static final String TIMER_TICK_MS = "server.timer.tickMs";
+
+    /**
+     * 时间轮每层的格数
+     */
+    public static final String TIMER_WHEEL_SIZE = "server.timer.wheelSize";
+
+    /**
+     * 到期任务的执行线程数, 默认 cpu 核数
+     */
+    public static final String TIMER_EXECUTOR_THREADS = "server.timer.executorThreads";
+
+    /**
+     * 注册表按服务名分区的数量, 也是 http 服务的 event loop 数
+     */
+    public static final String PARTITIONS = "server.partitions";
+
+    /**
+     * 每个分区写线程环形缓冲的大小, 必须是 2 的幂
+     */
+    public static final String WRITER_RING_SIZE = "server.writer.ringSize";
+
+    /**
+     * 注册表持久化目录, 不配置时不持久化
+     */
+    public static final String PERSIST_DIR = "server.persist.dir";
+
+    /**
+     * 每批日志写入后是否 fsync, 默认只写到页缓存(进程崩溃不丢, 机器掉电可能丢最后几批)
+     */
+    public static final String PERSIST_FSYNC = "server.persist.fsync";
+
+    /**
+     * 快照间隔(毫秒), 快照之后删除旧的日志段
+     */
+    public static final String PERSIST_SNAPSHOT_INTERVAL_MS = "server.persist.snapshotIntervalMs";
+
+    /**
+     * 热重启宽限期: 恢复的实例续约达到这个比例之前不剔除
+     */
+    public static final String RESTART_GRACE_RATIO = "server.restart.graceRatio";
+
+    /**
+     * 热重启宽限期最长时长(毫秒)
+     */
+    public static final String RESTART_GRACE_MAX_MS = "server.restart.graceMaxMs";
+
+    /**
+     * 恢复的实例第一次心跳检查的随机推迟上限(毫秒), 默认等于 unhealthyMs
+     */
+    public static final String RESTART_JITTER_MS = "server.restart.jitterMs";
+
+    /**
+     * 集群 gossip 端口, 不配置时单机运行
+     */
+    public static final String CLUSTER_PORT = "server.cluster.port";
+
+    /**
+     * 种子节点 host:port, 逗号分隔
+     */
+    public static final String CLUSTER_SEEDS = "server.cluster.seeds";
+
+    /**
+     * 心跳合并后扩散的间隔(毫秒)
+     */
+    public static final String CLUSTER_HEARTBEAT_INTERVAL_MS = "server.cluster.heartbeatIntervalMs";
+
+    /**
+     * 和随机一个节点比较 Merkle 树的间隔(毫秒)
+     */
+    public static final String CLUSTER_ANTI_ENTROPY_INTERVAL_MS = "server.cluster.antiEntropyIntervalMs";
+
+    /**
+     * 跨机房联邦的 WAN gossip 端口, 不配置时不加入联邦
+     */
+    public static final String FEDERATION_PORT = "server.federation.port";
+
+    /**
+     * 其他机房的联邦种子节点 host:port, 逗号分隔
+     */
+    public static final String FEDERATION_SEEDS = "server.federation.seeds";
+
+    /**
+     * 本机房名称, 默认取 server.env
+     */
+    public static final String FEDERATION_DC = "server.federation.dc";
+
+    /**
+     * 扩散本机房服务摘要的间隔(毫秒)
+     */
+    public static final String FEDERATION_SUMMARY_INTERVAL_MS = "server.federation.summaryIntervalMs";
+
+    /**
+     * 其他机房实例列表的缓存时间(毫秒)
+     */
+    public static final String FEDERATION_CACHE_TTL_MS = "server.federation.cacheTtlMs";
+
+    /**
+     * 没有缓存时等待其他机房返回实例列表的最长时间(毫秒)
+     */
+    public static final String FEDERATION_FETCH_TIMEOUT_MS = "server.federation.fetchTimeoutMs";
+
+    /**
+     * 本机房健康实例占比低于这个值时才使用其他机房的实例, 0 表示不使用
+     */
+    public static final String FEDERATION_SPILL_RATIO = "server.federation.spillRatio";
+
     public static Properties global;
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
         global = PropertiesUtils.getProperties("conf/application.properties");
         String port = global.getProperty("server.port");
 
+        RegistryPersistence.recover();
+        RegistryCluster.start();
+        Federation.start();
+
         NettyHttpServer httpServer =  new NettyHttpServer(Integer.valueOf(port));
         httpServer.start();
     }
 
 
+    /**
+     *  读取配置, 没有加载配置文件(或没有配置该项)时返回默认值
+     */
+    public static String getProperty(String key, String defaultValue) {
+        Properties properties = global;
+        if (properties == null) {
+            return defaultValue;
+        }
+        return properties.getProperty(key, defaultValue);
+    }
+
+
 }
@@ -5,6 +5,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.net.UnknownHostException;
 import java.util.concurrent.TimeUnit;
@@ -24,21 +25,28 @@ public class IpUtils {
 
 
     public static String resoleHost(SocketAddress socketAddress) {
-        String socketAddr = socketAddress.toString();
-        Matcher m = HOST_FORMAT.matcher(socketAddr);
-        if (!m.matches()) {
-            throw new IllegalArgumentException(String.format("unsupported address [%s]!", new Object[] {socketAddress}));
-        }
-        String hostAndPort = m.group(2);
-        if (!StringUtils.isEmpty(hostAndPort)) {
-            throw new NullPointerException("hostAndPort can't be blank !");
+        String host;
+        if (socketAddress instanceof InetSocketAddress) {
+            // 每个请求都会解析, 直接取地址, 不走正则
+            InetSocketAddress address = (InetSocketAddress) socketAddress;
+            host = address.getAddress() != null ? address.getAddress().getHostAddress() : address.getHostString();
+        } else {
+            String socketAddr = socketAddress.toString();
+            Matcher m = HOST_FORMAT.matcher(socketAddr);
+            if (!m.matches()) {
+                throw new IllegalArgumentException(String.format("unsupported address [%s]!", new Object[] {socketAddress}));
+            }
+            String hostAndPort = m.group(2);
+            if (StringUtils.isEmpty(hostAndPort)) {
+                throw new NullPointerException("hostAndPort can't be blank !");
+            }
+            Matcher matcher = ADDRESS_FORMAT.matcher(hostAndPort);
+            host = matcher.matches() ? matcher.group("host") : hostAndPort;
         }
-        Matcher matcher = ADDRESS_FORMAT.matcher(hostAndPort);
-        String host = matcher.group(1);
-        if (!StringUtils.isEmpty(host)) {
+        if (StringUtils.isEmpty(host)) {
             throw new NullPointerException("host can't be empty！");
         }
-        host = "localhost".equalsIgnoreCase(host) || "127.0.0.1".equals(host) ? getLocalIpAddress().getHostAddress() : host;
+        host = "localhost".equalsIgnoreCase(host) || LOCALHOST_IP1.equals(host) ? getLocalIpAddress().getHostAddress() : host;
         return host;
     }
 
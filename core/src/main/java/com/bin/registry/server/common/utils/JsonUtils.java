@@ -1,8 +1,16 @@
 package com.bin.registry.server.common.utils;
 
+import com.bin.registry.server.core.store.InstanceRecord;
+import com.bin.registry.server.core.store.InstanceRecordAdapter;
 import com.bin.registry.server.model.CallerInstance;
+import com.bin.registry.server.model.Heartbeat;
 import com.bin.registry.server.model.Node;
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import com.google.gson.reflect.TypeToken;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufInputStream;
@@ -11,12 +19,15 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.lang.reflect.Type;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 
 public class JsonUtils {
 
-    static Gson gson = new Gson();
+    static Gson gson = new GsonBuilder()
+            .registerTypeAdapter(InstanceRecord.class, new InstanceRecordAdapter())
+            .create();
 
     public static String toJson(Object obj) {
         if (Objects.isNull(obj)) return "";
@@ -52,6 +63,61 @@ public class JsonUtils {
         return node;
     }
 
+    public static List<Heartbeat> readHeartbeats(ByteBuf byteBuf) {
+        Type type = new TypeToken<List<Heartbeat>>(){}.getType();
+        List<Heartbeat> heartbeats = null;
+        try(Reader reader =new InputStreamReader(new ByteBufInputStream(byteBuf))){
+            heartbeats = gson.fromJson(reader, type);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return heartbeats;
+    }
+
+    /**
+     * 请求体不是 json 数组时返回 null
+     */
+    public static JsonArray readArray(ByteBuf byteBuf) {
+        try(Reader reader =new InputStreamReader(new ByteBufInputStream(byteBuf))){
+            JsonElement element = new JsonParser().parse(reader);
+            return element.isJsonArray() ? element.getAsJsonArray() : null;
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * 请求体不是 json 对象时返回 null
+     */
+    public static JsonObject readObject(ByteBuf byteBuf) {
+        try(Reader reader =new InputStreamReader(new ByteBufInputStream(byteBuf))){
+            JsonElement element = new JsonParser().parse(reader);
+            return element.isJsonObject() ? element.getAsJsonObject() : null;
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    public static <T> T fromJson(JsonElement element, Class<T> type) {
+        try {
+            return gson.fromJson(element, type);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    public static <T> T fromJson(String json, Type type) {
+        try {
+            return gson.fromJson(json, type);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
     public static Map<String,Object> jsonToMap(String json) {
         if (Objects.isNull(json)) return null;
         try {
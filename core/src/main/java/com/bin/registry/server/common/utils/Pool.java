@@ -10,7 +10,6 @@ import java.util.function.Function;
 public class Pool<K, V> {
 
     private ConcurrentMap<K, V> pool = new ConcurrentHashMap<>();
-    private Object createLock = new Object();
 
     private Function<K, V> valueFactory;
 
@@ -29,28 +28,21 @@ public class Pool<K, V> {
     }
 
 
+    /**
+     * 已存在时不加锁也不创建新值, 不存在时由 ConcurrentHashMap 保证只创建一次
+     */
     public V getAndMaybePut(K key) {
         if (valueFactory == null)
             throw new RuntimeException("Empty value factory in pool.");
-       return getAndMaybePut(key, valueFactory.apply(key));
+        V current = pool.get(key);
+        if (current != null)
+            return current;
+        return pool.computeIfAbsent(key, valueFactory);
     }
 
-    ;
-
     public V getAndMaybePut(K key, V createValue) {
-        V current = pool.get(key);
-        if (current == null) {
-            synchronized (createLock) {
-                current = pool.get(key);
-                if (current == null) {
-                    V value = createValue;
-                    pool.put(key, value);
-                    return value;
-                } else
-                    return current;
-            }
-        } else
-            return current;
+        V current = pool.putIfAbsent(key, createValue);
+        return current == null ? createValue : current;
     }
 
     public boolean contains(K id) {
@@ -0,0 +1,58 @@
+package com.bin.registry.server.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ *  单个服务的有界变更日志, 按 revision 取模存放在环形数组里
+ *
+ *  写入方在发布快照之后追加, 读取方发现槽位的 revision 对不上
+ *  (已被覆盖或者还没写入)就认为日志不可用, 回退到全量
+ */
+public final class ChangeLog {
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private final AtomicReferenceArray<ServiceChange> ring;
+
+    private final int capacity;
+
+    public ChangeLog() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public ChangeLog(int capacity) {
+        this.capacity = capacity;
+        this.ring = new AtomicReferenceArray<>(capacity);
+    }
+
+    public void append(ServiceChange change) {
+        ring.set(slot(change.getRevision()), change);
+    }
+
+    /**
+     * 返回 (fromRevision, toRevision] 之间的变更, 日志已经覆盖不到时返回 null
+     */
+    public List<ServiceChange> between(long fromRevision, long toRevision) {
+        if (fromRevision >= toRevision) {
+            return List.of();
+        }
+        if (toRevision - fromRevision > capacity) {
+            return null;
+        }
+        List<ServiceChange> changes = new ArrayList<>((int) (toRevision - fromRevision));
+        for (long revision = fromRevision + 1; revision <= toRevision; revision++) {
+            ServiceChange change = ring.get(slot(revision));
+            if (change == null || change.getRevision() != revision) {
+                return null;
+            }
+            changes.add(change);
+        }
+        return changes;
+    }
+
+    private int slot(long revision) {
+        return (int) (revision % capacity);
+    }
+}
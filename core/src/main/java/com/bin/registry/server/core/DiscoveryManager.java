@@ -0,0 +1,217 @@
+package com.bin.registry.server.core;
+
+import com.bin.registry.server.core.cluster.Federation;
+import com.bin.registry.server.core.task.DelayedDiscovery;
+import com.bin.registry.server.core.task.ServiceKey;
+import com.bin.registry.server.core.timer.DelayedOperationPurgatory;
+import com.bin.registry.server.model.CallerInstance;
+import com.bin.registry.server.core.store.InstanceRecord;
+import com.bin.registry.server.model.ServiceDiscovery;
+import io.netty.channel.Channel;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ *  长轮询服务发现
+ *
+ *  客户端带着已持有的 revision 或摘要过来, 没有变化就挂起在时间轮上,
+ *  服务发布新快照时按服务名唤醒, 否则等到超时返回
+ */
+public class DiscoveryManager {
+
+    /**
+     * 单次挂起的最长时间
+     */
+    public static final long MAX_LONG_POLL_MS = 30 * 1000;
+
+    public static final DelayedOperationPurgatory<DelayedDiscovery> discoveryTimer =
+            new DelayedOperationPurgatory<>("discoveryTimer");
+
+
+    /**
+     * 挂起请求, 返回 false 表示已经可以立即返回结果
+     */
+    public static boolean watch(Channel channel, CallerInstance caller) {
+        if (caller.getTimeout() <= 0 || changed(caller)) {
+            return false;
+        }
+        long timeout = Math.min(caller.getTimeout(), MAX_LONG_POLL_MS);
+        DelayedDiscovery operation = new DelayedDiscovery(timeout, channel, caller);
+
+        Set<String> servers = caller.getServerInfo();
+        List<ServiceKey> keys = new ArrayList<>(servers.size());
+        for (String server : servers) {
+            keys.add(new ServiceKey(server));
+        }
+        discoveryTimer.tryCompleteElseWatch(operation, keys);
+        return true;
+    }
+
+
+    /**
+     * 服务发布了新快照, 唤醒监听该服务的请求
+     */
+    public static void serviceChanged(String serviceName) {
+        discoveryTimer.checkAndComplete(new ServiceKey(serviceName));
+    }
+
+
+    /**
+     * 任意一个订阅的服务版本(或摘要)和客户端持有的不一致
+     */
+    public static boolean changed(CallerInstance caller) {
+        Map<String, Long> revisions = sameEpoch(caller) ? caller.getRevisions() : null;
+        Map<String, String> checksums = caller.getChecksums();
+        NodeFilter filter = NodeFilter.of(caller.getFilters());
+        for (String server : caller.getServerInfo()) {
+            ServiceView view = NodeManager.view(server);
+            Long known = revisions == null ? null : revisions.get(server);
+            String checksum = checksums == null ? null : checksums.get(server);
+            if (known != null) {
+                if (known != (view == null ? 0L : view.getRevision())) {
+                    return true;
+                }
+                // 合并进来的其他机房实例不体现在 revision 上, 带了摘要时再比较摘要
+                if (checksum == null || !Federation.isEnabled()) {
+                    continue;
+                }
+            }
+            if (checksum == null) {
+                return true;
+            }
+            if (view == null) {
+                view = ServiceView.empty(server);
+            }
+            if (!checksum.equals(checksum(view, nodes(server, view, filter)))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * 摘要一致的服务只返回未变更标记, 其余按 revision 返回增量或全量
+     * 带过滤条件时摘要和实例都只针对过滤后的结果
+     */
+    public static Map<String, ServiceDiscovery> fetch(CallerInstance caller) {
+        Map<String, ServiceDiscovery> result = new HashMap<>();
+        Map<String, Long> revisions = sameEpoch(caller) ? caller.getRevisions() : null;
+        Map<String, String> checksums = caller.getChecksums();
+        NodeFilter filter = NodeFilter.of(caller.getFilters());
+        for (String server : caller.getServerInfo()) {
+            ServiceView view = NodeManager.view(server);
+            if (view == null) {
+                view = ServiceView.empty(server);
+            }
+            List<InstanceRecord> local = filter.isEmpty() ? view.getActiveNodes() : NodeManager.select(server, filter, true);
+            List<InstanceRecord> nodes = Federation.withRemote(view, local, filter);
+            String current = checksum(view, nodes);
+            String checksum = checksums == null ? null : checksums.get(server);
+            if (checksum != null && checksum.equals(current)) {
+                result.put(server, ServiceDiscovery.notModified(server, view.getRevision(), current));
+                continue;
+            }
+            Long known = revisions == null ? null : revisions.get(server);
+            ServiceDiscovery discovery = null;
+            // 合并了其他机房的实例, 或客户端持有的结果里有, 变更日志都对不上, 只返回全量
+            if (caller.isIncremental() && known != null && known > 0
+                    && nodes == local && !Federation.servedRemote(server, known)) {
+                discovery = delta(view, known, filter, current);
+            }
+            if (discovery == null) {
+                discovery = new ServiceDiscovery(server, view.getRevision(), current, nodes);
+            }
+            result.put(server, discovery);
+        }
+        return result;
+    }
+
+
+    /**
+     * 客户端持有的 revision 是否来自本节点本次启动, 没带纪元的老客户端按一致处理
+     */
+    private static boolean sameEpoch(CallerInstance caller) {
+        Long epoch = caller.getEpoch();
+        return epoch == null || epoch == ServiceView.EPOCH;
+    }
+
+    /**
+     * 本机房对外提供(且命中过滤条件)的实例, 需要时合并其他机房的实例
+     * 这里可能运行在时间轮线程上, 其他机房的实例只用缓存
+     */
+    private static List<InstanceRecord> nodes(String server, ServiceView view, NodeFilter filter) {
+        List<InstanceRecord> local = filter.isEmpty() ? view.getActiveNodes() : NodeManager.select(server, filter, true);
+        return Federation.withRemote(view, local, filter);
+    }
+
+    private static String checksum(ServiceView view, List<InstanceRecord> nodes) {
+        return nodes == view.getActiveNodes() ? view.getChecksum() : ServiceView.checksum(nodes);
+    }
+
+
+    /**
+     * 合并 known 之后的变更, 同一个实例只保留最后的状态
+     * 变更日志覆盖不到 known 时返回 null, 由调用方回退到全量
+     */
+    private static ServiceDiscovery delta(ServiceView view, long known, NodeFilter filter, String checksum) {
+        if (known > view.getRevision()) {
+            return null;
+        }
+        List<ServiceChange> changes = view.changesSince(known);
+        if (changes == null) {
+            return null;
+        }
+        Map<String, InstanceRecord> added = new LinkedHashMap<>();
+        Map<String, InstanceRecord> modified = new LinkedHashMap<>();
+        Set<String> removed = new LinkedHashSet<>();
+        for (ServiceChange change : changes) {
+            for (InstanceRecord node : change.getAdded()) {
+                String key = node.instanceKey();
+                if (removed.remove(key)) {
+                    modified.put(key, node);
+                } else {
+                    added.put(key, node);
+                }
+            }
+            for (InstanceRecord node : change.getModified()) {
+                String key = node.instanceKey();
+                if (added.containsKey(key)) {
+                    added.put(key, node);
+                } else {
+                    modified.put(key, node);
+                }
+            }
+            for (InstanceRecord node : change.getRemoved()) {
+                String key = node.instanceKey();
+                if (added.remove(key) == null) {
+                    modified.remove(key);
+                    removed.add(key);
+                }
+            }
+        }
+        // 只下发对外提供且命中过滤条件的实例, 其余对客户端来说等同于删除
+        List<InstanceRecord> addedNodes = new ArrayList<>(added.size());
+        for (InstanceRecord node : added.values()) {
+            if (view.serves(node) && filter.matches(node)) {
+                addedNodes.add(node);
+            }
+        }
+        List<InstanceRecord> modifiedNodes = new ArrayList<>(modified.size());
+        for (InstanceRecord node : modified.values()) {
+            if (view.serves(node) && filter.matches(node)) {
+                modifiedNodes.add(node);
+            } else {
+                removed.add(node.instanceKey());
+            }
+        }
+        return ServiceDiscovery.delta(view.getServiceName(), view.getRevision(), checksum,
+                addedNodes, modifiedNodes, new ArrayList<>(removed));
+    }
+}
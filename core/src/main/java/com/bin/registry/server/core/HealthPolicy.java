@@ -0,0 +1,132 @@
+package com.bin.registry.server.core;
+
+import com.bin.registry.server.RegistryCenter;
+import com.bin.registry.server.common.utils.StringUtils;
+import com.bin.registry.server.core.store.InstanceRecord;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ *  服务的健康检查阈值
+ *
+ *  超过 unhealthyMs 没有心跳标记为不健康, 超过 evictMs 剔除
+ *  全局默认值 server.health.unhealthyMs / server.health.evictMs,
+ *  单个服务可以用 server.health.{serviceName}.unhealthyMs / evictMs 覆盖
+ *
+ *  配置了 server.health.phiThreshold 时按实例的心跳间隔自适应(见 PhiAccrual):
+ *  phi 达到阈值标记不健康, 达到两倍阈值剔除, 样本不足时仍按固定时长;
+ *  自适应的时长最多放宽到固定时长的 MAX_PHI_FACTOR 倍
+ */
+public final class HealthPolicy {
+
+    public static final long DEFAULT_UNHEALTHY_MS = 15 * 1000;
+
+    public static final long DEFAULT_EVICT_MS = 30 * 1000;
+
+    public static final int MAX_PHI_FACTOR = 2;
+
+    private static final ConcurrentMap<String, HealthPolicy> policies = new ConcurrentHashMap<>();
+
+    private final long unhealthyMs;
+
+    private final long evictMs;
+
+    /**
+     * 0 表示不启用 phi-accrual
+     */
+    private final double phiThreshold;
+
+    public HealthPolicy(long unhealthyMs, long evictMs) {
+        this(unhealthyMs, evictMs, 0);
+    }
+
+    public HealthPolicy(long unhealthyMs, long evictMs, double phiThreshold) {
+        if (unhealthyMs <= 0 || evictMs < unhealthyMs) {
+            throw new IllegalArgumentException("require 0 < unhealthyMs <= evictMs, but " + unhealthyMs + "/" + evictMs);
+        }
+        if (phiThreshold < 0) {
+            throw new IllegalArgumentException("require phiThreshold >= 0, but " + phiThreshold);
+        }
+        this.unhealthyMs = unhealthyMs;
+        this.evictMs = evictMs;
+        this.phiThreshold = phiThreshold;
+    }
+
+    public static HealthPolicy of(String serviceName) {
+        return policies.computeIfAbsent(serviceName, HealthPolicy::load);
+    }
+
+    /**
+     * 运行时修改某个服务的阈值, 下一次检查开始生效
+     */
+    public static void set(String serviceName, HealthPolicy policy) {
+        policies.put(serviceName, policy);
+    }
+
+    private static HealthPolicy load(String serviceName) {
+        long unhealthyMs = millis(RegistryCenter.HEALTH_UNHEALTHY_MS, serviceName, DEFAULT_UNHEALTHY_MS);
+        long evictMs = millis(RegistryCenter.HEALTH_EVICT_MS, serviceName, DEFAULT_EVICT_MS);
+        double phiThreshold = number(RegistryCenter.HEALTH_PHI_THRESHOLD, serviceName, 0);
+        return new HealthPolicy(unhealthyMs, Math.max(unhealthyMs, evictMs), Math.max(phiThreshold, 0));
+    }
+
+    private static double number(String key, String serviceName, double defaultValue) {
+        String value = value(key, serviceName);
+        if (StringUtils.isEmpty(value)) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static long millis(String key, String serviceName, long defaultValue) {
+        String value = value(key, serviceName);
+        return StringUtils.isInteger(value) ? Long.parseLong(value) : defaultValue;
+    }
+
+    private static String value(String key, String serviceName) {
+        String global = RegistryCenter.getProperty(key, null);
+        return RegistryCenter.getProperty(
+                key.replace("server.health.", "server.health." + serviceName + "."), global);
+    }
+
+    /**
+     * 实例空闲多久标记为不健康
+     */
+    public long unhealthyAfter(InstanceRecord node) {
+        PhiAccrual detector = detector(node);
+        return detector == null ? unhealthyMs : detector.idleFor(phiThreshold, unhealthyMs * MAX_PHI_FACTOR);
+    }
+
+    /**
+     * 实例空闲多久剔除, 不会早于 unhealthyAfter
+     */
+    public long evictAfter(InstanceRecord node) {
+        PhiAccrual detector = detector(node);
+        if (detector == null) {
+            return evictMs;
+        }
+        long unhealthy = detector.idleFor(phiThreshold, unhealthyMs * MAX_PHI_FACTOR);
+        return Math.max(unhealthy, detector.idleFor(phiThreshold * 2, evictMs * MAX_PHI_FACTOR));
+    }
+
+    private PhiAccrual detector(InstanceRecord node) {
+        return phiThreshold > 0 ? PhiAccrual.of(node) : null;
+    }
+
+    public long getUnhealthyMs() {
+        return unhealthyMs;
+    }
+
+    public long getEvictMs() {
+        return evictMs;
+    }
+
+    public double getPhiThreshold() {
+        return phiThreshold;
+    }
+}
@@ -1,45 +1,179 @@
 package com.bin.registry.server.core;
 
+import com.bin.registry.server.core.cluster.RegistryCluster;
+import com.bin.registry.server.core.store.InstanceRecord;
 import com.bin.registry.server.core.task.NodeHeartbeat;
-import com.bin.registry.server.core.timer.DelayedOperationPurgatory;
-import com.bin.registry.server.model.Node;
+import com.bin.registry.server.core.timer.ExpirationReaper;
+import com.bin.registry.server.core.timer.Timer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 public class HeartbeatManager {
 
     private static Logger logger = LoggerFactory.getLogger(HeartbeatManager.class);
 
-    public static final DelayedOperationPurgatory<NodeHeartbeat> heartbeatTimer =
-            new DelayedOperationPurgatory("heartbeatTimer");
+    public static final Timer heartbeatTimer = new Timer.SystemTimer("heartbeatTimer");
+
+    /**
+     *  到期的检查任务, 每轮推进之后由 reaper 线程按服务分组一次处理
+     */
+    private static final Queue<NodeHeartbeat> expired = new ConcurrentLinkedQueue<>();
+
+    private static final ExpirationReaper expirationReaper =
+            new ExpirationReaper("heartbeatTimer", heartbeatTimer, HeartbeatManager::drainExpired);
+
+    static {
+        expirationReaper.start();
+    }
 
 
 
     /**
      *  第一次来加入时间论
-     *  之后每次来把之前的任务取消,重置时间
+     *  之后的心跳只更新 heartbeatTime, 不碰时间轮,
+     *  任务到期时自己根据 heartbeatTime 重新挂回去
      *
      *  5秒上报
      *  15秒标记不健康
      *  30秒剔除
+     *  (阈值见 HealthPolicy, 可以按服务配置)
+     */
+    public static void heartbeat(InstanceRecord node) {
+        heartbeat(node, 0);
+    }
+
+    /**
+     *  第一次检查额外推迟 jitterMs, 大量实例同时挂上时打散到期时间
      */
-    public static void heartbeat(Node node) {
-        // extends WatchKey
-        NodeHeartbeat operation = new NodeHeartbeat(15 * 1000,node);
-        heartbeatTimer.tryCompleteElseWatch(operation, List.of(node));
+    public static void heartbeat(InstanceRecord node, long jitterMs) {
+        if (!node.arm()) {
+            return;
+        }
+        if (!RegistryCluster.owns(node)) {
+            // 集群里由归属节点检查
+            node.disarm();
+            return;
+        }
+        long delayMs = HealthPolicy.of(node.getServiceName()).unhealthyAfter(node) + jitterMs;
+        heartbeatTimer.add(new NodeHeartbeat(delayMs, node));
+    }
 
+    /**
+     *  集群成员变化后接管实例的检查, 已经在检查的返回 false
+     */
+    public static boolean adopt(InstanceRecord node) {
+        if (!node.arm()) {
+            return false;
+        }
+        node.setHeartbeatTime(Math.max(node.getHeartbeatTime(), System.currentTimeMillis()));
+        long delayMs = HealthPolicy.of(node.getServiceName()).unhealthyAfter(node);
+        heartbeatTimer.add(new NodeHeartbeat(delayMs, node));
+        return true;
     }
 
 
-    public static void againHeartbeat(Node node) {
-        List<NodeHeartbeat> connHeartbeats = heartbeatTimer.cancelForKey(node);
-        if (connHeartbeats.size() > 0) {
-            NodeHeartbeat connHeartbeat = connHeartbeats.get(0);
-            heartbeatTimer.tryCompleteElseWatch(connHeartbeat, List.of(node));
-        } else {
-            heartbeat(node);
+    /**
+     *  调用方已经更新了 heartbeatTime, 不健康的实例立即恢复,
+     *  再补挂丢失的任务(例如刚被剔除又重新注册)
+     *  集群里只有归属节点决定健康状态, 其他节点只刷新心跳, 由调用方转发给归属节点
+     */
+    public static void againHeartbeat(InstanceRecord node) {
+        WarmRestart.renewed(node);
+        if (!RegistryCluster.owns(node)) {
+            return;
+        }
+        if (!node.isHealthy()) {
+            NodeManager.changeHealth(node, true);
+        }
+        heartbeat(node);
+    }
+
+
+    public static void expired(NodeHeartbeat task) {
+        expired.offer(task);
+    }
+
+
+    /**
+     *  同一轮到期的任务按服务分组, 每个服务的健康变化和剔除只发布一次快照,
+     *  变更通知也只发一次; 处理时按最新的 heartbeatTime 重新判断, 排队期间来了心跳的不会被误判
+     *  结果按分区异步交给写线程, 写线程里会再按实例的最新状态确认一次
+     */
+    static void drainExpired() {
+        NodeHeartbeat task = expired.poll();
+        if (task == null) {
+            return;
+        }
+        Map<String, List<NodeHeartbeat>> byService = new HashMap<>();
+        while (task != null) {
+            byService.computeIfAbsent(task.getNode().getServiceName(), k -> new ArrayList<>()).add(task);
+            task = expired.poll();
+        }
+        long now = System.currentTimeMillis();
+        Map<RegistryPartition, List<Runnable>> byPartition = new HashMap<>();
+        for (Map.Entry<String, List<NodeHeartbeat>> entry : byService.entrySet()) {
+            HealthPolicy policy = HealthPolicy.of(entry.getKey());
+            List<InstanceRecord> recovered = new ArrayList<>();
+            List<InstanceRecord> unhealthy = new ArrayList<>();
+            List<InstanceRecord> evicted = new ArrayList<>();
+            for (NodeHeartbeat expiredTask : entry.getValue()) {
+                InstanceRecord node = expiredTask.getNode();
+                if (!RegistryCluster.owns(node)) {
+                    // 归属已经换到别的节点, 任务不再重挂
+                    node.disarm();
+                    continue;
+                }
+                long idle = now - node.getHeartbeatTime();
+                long unhealthyAfter = policy.unhealthyAfter(node);
+                long evictAfter = policy.evictAfter(node);
+                if (idle < unhealthyAfter) {
+                    if (!node.isHealthy()) {
+                        recovered.add(node);
+                    }
+                    expiredTask.rearm(unhealthyAfter - idle);
+                } else if (idle < evictAfter) {
+                    // 亚健康
+                    if (node.isHealthy()) {
+                        unhealthy.add(node);
+                    }
+                    expiredTask.rearm(evictAfter - idle);
+                } else if (WarmRestart.holdEviction()) {
+                    // 热重启宽限期, 先只标记不健康
+                    if (node.isHealthy()) {
+                        unhealthy.add(node);
+                    }
+                    expiredTask.rearm(unhealthyAfter);
+                } else {
+                    node.disarm();
+                    evicted.add(node);
+                }
+            }
+            if (recovered.isEmpty() && unhealthy.isEmpty() && evicted.isEmpty()) {
+                continue;
+            }
+            String serviceName = entry.getKey();
+            byPartition.computeIfAbsent(RegistryPartition.of(serviceName), k -> new ArrayList<>()).add(() -> {
+                try {
+                    NodeManager.applyHeartbeats(serviceName, recovered, unhealthy, evicted);
+                } catch (Exception e) {
+                    logger.error("apply heartbeat expiration of {} failed", serviceName, e);
+                }
+                if (!evicted.isEmpty() && logger.isDebugEnabled()) {
+                    logger.debug("evicted {} instances of {}", evicted.size(), serviceName);
+                }
+            });
+        }
+        // 每个分区提交一次, 不等写线程发布, reaper 线程只负责推进时间轮
+        for (Map.Entry<RegistryPartition, List<Runnable>> entry : byPartition.entrySet()) {
+            List<Runnable> actions = entry.getValue();
+            entry.getKey().submit(() -> actions.forEach(Runnable::run));
         }
     }
 }
@@ -0,0 +1,97 @@
+package com.bin.registry.server.core;
+
+import com.bin.registry.server.core.store.InstanceRecord;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Predicate;
+
+/**
+ *  单个服务的倒排索引: 词项(zone=a, tags=canary ...) -> 实例
+ *
+ *  随着实例注册/变更/剔除增量维护, 查询从最短的倒排链开始,
+ *  代价和结果集大小成正比而不是和服务规模成正比
+ *  倒排链里只是实例 key, 查询时回到 NodeManager 取最新的实例再校验一次
+ */
+public final class InvertedIndex {
+
+    private final ConcurrentMap<String, Set<InstanceRecord>> postings = new ConcurrentHashMap<>();
+
+    /**
+     * 每个实例当前写入的词项, 由 this 保护
+     */
+    private final Map<InstanceRecord, Indexed> indexed = new HashMap<>();
+
+    public synchronized void index(InstanceRecord node) {
+        Indexed previous = indexed.get(node);
+        if (previous != null) {
+            removeTerms(previous);
+        }
+        List<String> terms = NodeFilter.terms(node);
+        for (String term : terms) {
+            postings.computeIfAbsent(term, k -> ConcurrentHashMap.newKeySet()).add(node);
+        }
+        indexed.put(node, new Indexed(node, terms));
+    }
+
+    public synchronized void unindex(InstanceRecord node) {
+        Indexed previous = indexed.get(node);
+        // 同 key 的新实例已经重新建了索引, 旧实例的剔除不能把它删掉
+        if (previous == null || previous.node != node) {
+            return;
+        }
+        removeTerms(previous);
+        indexed.remove(node);
+    }
+
+    public List<InstanceRecord> select(NodeFilter filter, Predicate<InstanceRecord> accept) {
+        Set<InstanceRecord> smallest = null;
+        for (String term : filter.terms()) {
+            Set<InstanceRecord> posting = postings.get(term);
+            if (posting == null) {
+                return List.of();
+            }
+            if (smallest == null || posting.size() < smallest.size()) {
+                smallest = posting;
+            }
+        }
+        if (smallest == null) {
+            return List.of();
+        }
+        List<InstanceRecord> result = new ArrayList<>(smallest.size());
+        for (InstanceRecord key : smallest) {
+            InstanceRecord node = NodeManager.isRegistry(key);
+            if (node != null && accept.test(node) && filter.matches(node)) {
+                result.add(node);
+            }
+        }
+        return result;
+    }
+
+    private void removeTerms(Indexed previous) {
+        for (String term : previous.terms) {
+            Set<InstanceRecord> posting = postings.get(term);
+            if (posting != null) {
+                posting.remove(previous.node);
+                if (posting.isEmpty()) {
+                    postings.remove(term, posting);
+                }
+            }
+        }
+    }
+
+    private static final class Indexed {
+        private final InstanceRecord node;
+        private final List<String> terms;
+
+        private Indexed(InstanceRecord node, List<String> terms) {
+            this.node = node;
+            this.terms = terms;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.bin.registry.server.core;
+
+import com.bin.registry.server.common.utils.StringUtils;
+import com.bin.registry.server.core.store.InstanceRecord;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ *  服务发现的过滤条件, 例如 zone=a&tags=canary
+ *
+ *  多个条件之间是 与 的关系, 一个条件里逗号分隔的多个值也要求全部命中
+ */
+public final class NodeFilter {
+
+    public static final NodeFilter NONE = new NodeFilter(new EnumMap<>(Dimension.class));
+
+    public enum Dimension {
+        ZONE("zone", InstanceRecord::getZoneName),
+        TAGS("tags", InstanceRecord::getTags),
+        GROUP("group", InstanceRecord::getGroupArray),
+        CLUSTER("cluster", InstanceRecord::getClusterName),
+        ENV("env", InstanceRecord::getSystemEnv);
+
+        private final String param;
+
+        private final Function<InstanceRecord, String> extractor;
+
+        Dimension(String param, Function<InstanceRecord, String> extractor) {
+            this.param = param;
+            this.extractor = extractor;
+        }
+
+        public String getParam() {
+            return param;
+        }
+
+        List<String> values(InstanceRecord node) {
+            return split(extractor.apply(node));
+        }
+
+        String term(String value) {
+            return param + "=" + value;
+        }
+    }
+
+    private final Map<Dimension, List<String>> conditions;
+
+    private final List<String> terms;
+
+    private NodeFilter(Map<Dimension, List<String>> conditions) {
+        this.conditions = conditions;
+        List<String> terms = new ArrayList<>();
+        conditions.forEach((dimension, values) -> {
+            for (String value : values) {
+                terms.add(dimension.term(value));
+            }
+        });
+        this.terms = Collections.unmodifiableList(terms);
+    }
+
+    /**
+     * 从请求参数里取出过滤条件, 不认识的参数忽略
+     */
+    public static NodeFilter of(Map<String, ?> params) {
+        if (params == null || params.isEmpty()) {
+            return NONE;
+        }
+        Map<Dimension, List<String>> conditions = new EnumMap<>(Dimension.class);
+        for (Dimension dimension : Dimension.values()) {
+            Object value = params.get(dimension.param);
+            if (value == null) {
+                continue;
+            }
+            List<String> values = value instanceof List
+                    ? split(String.join(",", ((List<?>) value).stream().map(String::valueOf).toList()))
+                    : split(String.valueOf(value));
+            if (!values.isEmpty()) {
+                conditions.put(dimension, values);
+            }
+        }
+        return conditions.isEmpty() ? NONE : new NodeFilter(conditions);
+    }
+
+    /**
+     * 实例需要写入倒排索引的所有词项
+     */
+    public static List<String> terms(InstanceRecord node) {
+        List<String> terms = new ArrayList<>();
+        for (Dimension dimension : Dimension.values()) {
+            for (String value : dimension.values(node)) {
+                terms.add(dimension.term(value));
+            }
+        }
+        return terms;
+    }
+
+    public boolean isEmpty() {
+        return conditions.isEmpty();
+    }
+
+    public List<String> terms() {
+        return terms;
+    }
+
+    public boolean matches(InstanceRecord node) {
+        for (Map.Entry<Dimension, List<String>> condition : conditions.entrySet()) {
+            List<String> values = condition.getKey().values(node);
+            if (!values.containsAll(condition.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static List<String> split(String value) {
+        if (StringUtils.isEmpty(value)) {
+            return List.of();
+        }
+        List<String> values = new ArrayList<>(2);
+        for (String item : value.split(",")) {
+            String trimmed = item.trim();
+            if (!trimmed.isEmpty()) {
+                values.add(trimmed);
+            }
+        }
+        return values;
+    }
+}
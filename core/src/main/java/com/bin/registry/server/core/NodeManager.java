@@ -1,213 +1,666 @@
 package com.bin.registry.server.core;
 
-import com.bin.registry.server.common.collect.NonBlockingHashMap;
 import com.bin.registry.server.common.utils.StringUtils;
-import com.bin.registry.server.core.task.NodeHeartbeat;
-import com.bin.registry.server.core.timer.DelayedOperationPurgatory;
+import com.bin.registry.server.core.cluster.Federation;
+import com.bin.registry.server.core.cluster.RegistryCluster;
+import com.bin.registry.server.core.persist.RegistryPersistence;
+import com.bin.registry.server.core.store.InstanceRecord;
 import com.bin.registry.server.model.Node;
 
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.CopyOnWriteArraySet;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
 
 /**
+ *  注册表
  *
- *
+ *  状态按服务名分到 RegistryPartition, 读取方直接拿分区里的不可变快照;
+ *  变更都在服务所在分区的写线程里执行, 同一批变更按服务暂存,
+ *  批次结束时由 flush 每个服务发布一次快照
  */
 public class NodeManager {
 
-    private static final ConcurrentMap<String, List<String>> discoveryMapping =
-            new NonBlockingHashMap<>();
+
+    /**
+     *  需要合并其他机房实例时, 先一起拉取缺的缓存, 返回的 future 在拉到或者超时后完成, 不阻塞调用线程
+     */
+    public static CompletableFuture<Map<String,List<InstanceRecord>>> callerFetchNode(String caller,Set<String> servers) {
+        return Federation.prefetch(servers).thenApply(ignored -> {
+            Map<String,List<InstanceRecord>> callers = new HashMap<>();
+
+            for (String serverName : servers) {
+                ServiceView view = view(serverName);
+                if (view == null && !Federation.isEnabled()){
+                    continue;
+                }
+                // 本机房没有这个服务时, 只有其他机房有实例才返回
+                ServiceView local = view == null ? ServiceView.empty(serverName) : view;
+                List<InstanceRecord> nodes = Federation.withRemote(local, local.getActiveNodes(), NodeFilter.NONE);
+                if (view != null || !nodes.isEmpty()) {
+                    callers.put(serverName, nodes);
+                }
+            }
+            return callers;
+        });
+    }
 
 
-    private static final ConcurrentMap<String, List<String>> discoveryChangeMapping =
-            new NonBlockingHashMap<>();
+    public static ServiceView view(String serviceName) {
+        return RegistryPartition.of(serviceName).registryMapping.get(serviceName);
+    }
 
 
     /**
-     *  注册的服务端的集群映射
-     *   变更通知 -> 客户端带着MD5 和其他的node一一对比
-     *
+     *  订阅关系没变时直接返回, 变了交给写线程异步更新, 不阻塞服务发现
+     *  caller 的订阅列表在 caller 的分区, 每个服务的订阅方在服务的分区, 都是不可变列表整体替换
      */
-    private static final ConcurrentMap<String, List<Node>> registryMapping =
-            new NonBlockingHashMap<>();
+    public static void registryCaller(String caller,Set<String> servers) {
+        RegistryPartition callerPartition = RegistryPartition.of(caller);
+        List<String> current = callerPartition.discoveryMapping.get(caller);
+        if (current != null && current.size() == servers.size() && servers.containsAll(current)) {
+            return;
+        }
+        List<String> subscribed = List.copyOf(new HashSet<>(servers));
+        callerPartition.submit(() -> callerPartition.discoveryMapping.put(caller, subscribed));
+        RegistryPartition.group(subscribed, server -> server).forEach((partition, partitionServers) ->
+                partition.submit(() -> {
+                    for (String server : partitionServers) {
+                        List<String> callers = partition.discoveryChangeMapping.getOrDefault(server, List.of());
+                        if (!callers.contains(caller)) {
+                            List<String> updated = new ArrayList<>(callers.size() + 1);
+                            updated.addAll(callers);
+                            updated.add(caller);
+                            partition.discoveryChangeMapping.put(server, Collections.unmodifiableList(updated));
+                        }
+                    }
+                }));
+    }
+
 
 
-    public static Map<String,List<Node>> callerFetchNode(String caller,Set<String> servers) {
-        Map<String,List<Node>> callers = new HashMap<>();
+    public static InstanceRecord isRegistry(InstanceRecord node) {
+        return RegistryPartition.of(node.getServiceName()).instanceMapping.get(node);
+    }
 
-        for (String serverName : servers) {
 
-            List<Node> nodes = registryMapping.get(serverName);
-            if (nodes == null){
-                continue;
-            }
-            List<Node> result = new ArrayList<>();
-           for (Node node : nodes) {
-               if (node.isActive()) {
-                   result.add(node);
-               }
-           }
-            callers.put(serverName,nodes);
-        }
-        return callers;
+
+    /**
+     *  已注册实例的草稿已经在写线程里改好, 只需要发布新快照
+     */
+    public static void agentRegistryNode(InstanceRecord node) {
+        registryNodes(List.of(), Collections.singletonMap(node, null));
     }
 
+    /**
+     *  批量注册: added 是新建的实例, modified 是已注册实例和它上报的新内容
+     *  已发布的实例不在调用线程里修改, 新内容交给写线程写进草稿, flush 时整体替换;
+     *  上报内容为 null 表示草稿已经在写线程里改好
+     *  按分区交给各自的写线程, 每个服务只发布一次快照, 返回的 future 在全部发布后完成
+     */
+    public static CompletableFuture<Void> registryNodes(List<InstanceRecord> added, Map<InstanceRecord, Node> modified) {
+        Map<RegistryPartition, List<InstanceRecord>> addedByPartition =
+                RegistryPartition.group(added, InstanceRecord::getServiceName);
+        Map<RegistryPartition, List<InstanceRecord>> modifiedByPartition =
+                RegistryPartition.group(modified.keySet(), InstanceRecord::getServiceName);
+        Set<RegistryPartition> partitions = new HashSet<>(addedByPartition.keySet());
+        partitions.addAll(modifiedByPartition.keySet());
+        return RegistryPartition.applyAll(partitions, partition -> putNodes(partition,
+                addedByPartition.getOrDefault(partition, List.of()),
+                modifiedByPartition.getOrDefault(partition, List.of()), modified));
+    }
 
-    public static void registryCaller(String caller,Set<String> servers) {
-        List<String> strings = discoveryMapping.get(caller);
-        if (strings == null) {
-            synchronized (discoveryMapping) {
-                if (strings == null) {
-                    strings = new CopyOnWriteArrayList<>();
+    private static void putNodes(RegistryPartition partition, List<InstanceRecord> added, List<InstanceRecord> modified,
+                                 Map<InstanceRecord, Node> reported) {
+        Map<String, List<InstanceRecord>> addedByService = new HashMap<>();
+        Map<String, List<InstanceRecord>> modifiedByService = new HashMap<>();
+        Map<InstanceRecord, InstanceRecord> replaced = new IdentityHashMap<>();
+        long now = System.currentTimeMillis();
+        for (InstanceRecord node : modified) {
+            Node content = reported.get(node);
+            if (content != null) {
+                if (node.sameContent(content)) {
+                    // 同一批次里已经改成了这个内容
+                    continue;
                 }
+                if (!node.pending().isActive() && content.isActive()) {
+                    node.setOnLineTime(now);
+                }
+                node.update(content);
+            }
+            if (partition.instanceMapping.get(node) == node) {
+                modifiedByService.computeIfAbsent(node.getServiceName(), k -> new ArrayList<>()).add(node);
+            } else {
+                // 已经被剔除, 按新实例重新注册
+                put(partition, node, replaced);
+                addedByService.computeIfAbsent(node.getServiceName(), k -> new ArrayList<>()).add(node);
             }
         }
-        strings.clear();
-        strings.addAll(servers);
-
-        for (String server : servers) {
-            List<String> callers = discoveryChangeMapping.get(server);
-            if (callers == null) {
-                synchronized (discoveryChangeMapping) {
-                    if (callers == null) {
-                        callers = new CopyOnWriteArrayList<>();
+        for (InstanceRecord node : added) {
+            put(partition, node, replaced);
+            addedByService.computeIfAbsent(node.getServiceName(), k -> new ArrayList<>()).add(node);
+        }
+        Set<String> services = new HashSet<>(addedByService.keySet());
+        services.addAll(modifiedByService.keySet());
+        for (String serviceName : services) {
+            List<InstanceRecord> serviceAdded = addedByService.getOrDefault(serviceName, List.of());
+            List<InstanceRecord> serviceModified = modifiedByService.getOrDefault(serviceName, List.of());
+            publish(partition, serviceName, (nodes, change) -> {
+                Set<InstanceRecord> previous = Collections.newSetFromMap(new IdentityHashMap<>());
+                for (InstanceRecord node : serviceAdded) {
+                    InstanceRecord old = replaced.get(node);
+                    if (old != null) {
+                        previous.add(old);
                     }
                 }
-            }
-            synchronized (callers) {
-                if (!callers.contains(caller))
-                    callers.add(caller);
+                // 快照里确实存在的旧实例, 替换成新实例算作修改
+                Set<InstanceRecord> present = Collections.newSetFromMap(new IdentityHashMap<>());
+                if (!previous.isEmpty()) {
+                    nodes.removeIf(node -> previous.contains(node) && present.add(node));
+                }
+                for (InstanceRecord node : serviceAdded) {
+                    InstanceRecord old = replaced.get(node);
+                    if (old != null && present.contains(old)) {
+                        change.modified(node);
+                    } else {
+                        change.added(node);
+                    }
+                    nodes.add(node);
+                }
+                for (InstanceRecord node : serviceModified) {
+                    change.modified(node);
+                }
+            });
+        }
+        for (Map.Entry<InstanceRecord, InstanceRecord> entry : replaced.entrySet()) {
+            if (entry.getKey() != entry.getValue()) {
+                entry.getValue().release();
             }
         }
+    }
+
 
+    /**
+     *  通知
+     */
+    public static List<String> cancelNode(InstanceRecord node) {
+        RegistryPartition partition = RegistryPartition.of(node.getServiceName());
+        partition.apply(() -> {
+            InstanceRecord removed = partition.instanceMapping.remove(node);
+            if (removed != null) {
+                unindexIp(partition, removed);
+                publish(partition, node.getServiceName(), (nodes, change) -> {
+                    if (nodes.remove(removed)) {
+                        change.removed(removed);
+                    }
+                });
+                removed.release();
+            }
+        });
+        return callers(node.getServiceName());
     }
 
 
+    public static List<InstanceRecord> fetchAllNode() {
+        List<InstanceRecord> all = new ArrayList<>();
+        for (RegistryPartition partition : RegistryPartition.all()) {
+            for (ServiceView view : partition.registryMapping.values()) {
+                all.addAll(view.getNodes());
+            }
+        }
+        return all;
+    }
+
+    public static Map<String,List<InstanceRecord>> fetchServerNode(String serverName,String ip) {
+        return fetchServerNode(serverName, ip, NodeFilter.NONE);
+    }
 
-    public static Node isRegistry(Node node) {
-        List<Node> nodes = registryMapping.get(node.getServiceName());
-        if (nodes == null) {
-            synchronized (registryMapping) {
-                if (nodes == null)
-                     nodes = new CopyOnWriteArrayList<>();
+    public static Map<String,List<InstanceRecord>> fetchServerNode(String serverName,String ip,NodeFilter filter) {
+        Map<String,List<InstanceRecord>> serviceNode = new HashMap<>();
+        if (StringUtils.isEmpty(serverName)) {
+            for (RegistryPartition partition : RegistryPartition.all()) {
+                for (ServiceView view : partition.registryMapping.values()) {
+                    serviceNode.put(view.getServiceName(), filter.isEmpty()
+                            ? view.getNodes() : select(view.getServiceName(), filter, false));
+                }
             }
+            return serviceNode;
+        }
+        RegistryPartition partition = RegistryPartition.of(serverName);
+        List<InstanceRecord> servers = filter.isEmpty()
+                ? selectNodes(partition, serverName, ip) : select(serverName, filter, false);
+        if (!filter.isEmpty() && StringUtils.isNotEmpty(ip)) {
+            servers.removeIf(node -> !ip.equals(node.getIp()));
+        }
+        serviceNode.put(serverName,servers);
+        return serviceNode;
+    }
+
+
+    /**
+     *  按倒排索引过滤服务实例
+     */
+    public static List<InstanceRecord> select(String serviceName, NodeFilter filter, boolean activeOnly) {
+        RegistryPartition partition = RegistryPartition.of(serviceName);
+        InvertedIndex index = partition.indexMapping.get(serviceName);
+        if (index == null) {
+            return new ArrayList<>();
+        }
+        if (!activeOnly) {
+            return index.select(filter, node -> true);
         }
+        ServiceView view = partition.registryMapping.get(serviceName);
+        return view == null ? new ArrayList<>() : index.select(filter, view::serves);
+    }
 
-        int index = nodes.lastIndexOf(node);
-        if (index > 0) {
-            return nodes.get(index);
-        } else {
-            return null;
+    public static List<InstanceRecord> fetchCallerNode(String callerName) {
+        List<String> strings = RegistryPartition.of(callerName).discoveryMapping.get(callerName);
+        List<InstanceRecord> caller = new ArrayList<>();
+        if (strings == null) {
+            return caller;
+        }
+        for (String server : strings) {
+            ServiceView view = view(server);
+            if (view != null) {
+                caller.addAll(view.getNodes());
+            }
         }
+        return caller;
     }
 
+    /**
+     *  上下线和删除交给服务所在分区的写线程, 返回的 future 在发布后完成, 不阻塞调用线程
+     */
+    public static CompletableFuture<Void> openNode(String serviceName,String ip) {
+        return RegistryPartition.applyAll(List.of(RegistryPartition.of(serviceName)),
+                partition -> changeRunning(partition, serviceName, ip, true));
+    }
 
 
-    public static List<String> registryNode(Node node) {
-        registryMapping.get(node.getServiceName()).add(node);
-        return discoveryChangeMapping.get(node.getServiceName());
+    public static CompletableFuture<Void> closeNode(String serviceName,String ip) {
+        return RegistryPartition.applyAll(List.of(RegistryPartition.of(serviceName)),
+                partition -> changeRunning(partition, serviceName, ip, false));
     }
 
-    public static void agentRegistryNode(Node node) {
-        List<Node> nodes = registryMapping.get(node.getServiceName());
-        nodes.remove(node);
-        nodes.add(node);
+    private static void changeRunning(RegistryPartition partition, String serviceName, String ip, boolean running) {
+        List<InstanceRecord> changed = new ArrayList<>();
+        for (InstanceRecord node : selectNodes(partition, serviceName, ip)) {
+            if (!Boolean.valueOf(running).equals(node.pending().getRunning())) {
+                node.setRunning(running);
+                changed.add(node);
+            }
+        }
+        if (changed.isEmpty()) {
+            return;
+        }
+        publish(partition, serviceName, (nodes, change) -> {
+            for (InstanceRecord node : changed) {
+                change.modified(node);
+            }
+        });
     }
 
     /**
-     *  通知
+     *  心跳检查的健康状态变化, 实例已经不在注册表时忽略
+     */
+    public static void changeHealth(InstanceRecord node, boolean healthy) {
+        RegistryPartition partition = RegistryPartition.of(node.getServiceName());
+        if (!partition.inWriter() && node.isHealthy() == healthy) {
+            return;
+        }
+        Runnable action = () -> {
+            if (node.pending().isHealthy() == healthy || partition.instanceMapping.get(node) != node) {
+                return;
+            }
+            node.setHealthy(healthy);
+            publish(partition, node.getServiceName(), (nodes, change) -> change.modified(node));
+        };
+        if (partition.inWriter()) {
+            action.run();
+        } else {
+            // 心跳和注册的 I/O 线程不等待发布
+            partition.submit(action);
+        }
+    }
+
+    /**
+     *  心跳检查的批量结果, 同一个服务的恢复, 标记不健康和剔除合并成一次发布
+     *  已经不在注册表的实例忽略; 在写线程里调用时直接执行
      */
-    public static List<String> cancelNode(Node node) {
-        registryMapping.get(node.getServiceName()).remove(node);
-        return discoveryChangeMapping.get(node.getServiceName());
+    public static List<String> applyHeartbeats(String serviceName, List<InstanceRecord> recovered,
+                                               List<InstanceRecord> unhealthy, List<InstanceRecord> evicted) {
+        RegistryPartition partition = RegistryPartition.of(serviceName);
+        partition.apply(() -> changeHeartbeats(partition, serviceName, recovered, unhealthy, evicted));
+        return callers(serviceName);
     }
 
+    private static void changeHeartbeats(RegistryPartition partition, String serviceName, List<InstanceRecord> recovered,
+                                         List<InstanceRecord> unhealthy, List<InstanceRecord> evicted) {
+        List<InstanceRecord> changed = new ArrayList<>(recovered.size() + unhealthy.size());
+        for (InstanceRecord node : recovered) {
+            if (!node.pending().isHealthy() && partition.instanceMapping.get(node) == node) {
+                node.setHealthy(true);
+                changed.add(node);
+            }
+        }
+        for (InstanceRecord node : unhealthy) {
+            if (node.pending().isHealthy() && partition.instanceMapping.get(node) == node) {
+                node.setHealthy(false);
+                changed.add(node);
+            }
+        }
+        Set<InstanceRecord> removed = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (InstanceRecord node : evicted) {
+            if (partition.instanceMapping.remove(node, node)) {
+                unindexIp(partition, node);
+                removed.add(node);
+            }
+        }
+        if (changed.isEmpty() && removed.isEmpty()) {
+            return;
+        }
+        publish(partition, serviceName, (nodes, change) -> {
+            Iterator<InstanceRecord> iterator = nodes.iterator();
+            while (!removed.isEmpty() && iterator.hasNext()) {
+                InstanceRecord node = iterator.next();
+                if (removed.contains(node)) {
+                    iterator.remove();
+                    change.removed(node);
+                }
+            }
+            for (InstanceRecord node : changed) {
+                change.modified(node);
+            }
+        });
+        for (InstanceRecord node : removed) {
+            node.release();
+        }
+    }
 
-    public static List<Node> fetchAllNode() {
-        Collection<List<Node>> values = registryMapping.values();
-        return values.stream().flatMap(Collection::stream).collect(Collectors.toList());
+    public static CompletableFuture<Void> deleteNode(String serviceName,String ip) {
+        return RegistryPartition.applyAll(List.of(RegistryPartition.of(serviceName)),
+                partition -> removeNodes(partition, serviceName, ip));
     }
 
-    public static Map<String,List<Node>> fetchServerNode(String serverName,String ip) {
-        if (StringUtils.isEmpty(serverName)) {
-            return  Map.copyOf(registryMapping);
+    private static void removeNodes(RegistryPartition partition, String serviceName,String ip) {
+        List<InstanceRecord> selected = selectNodes(partition, serviceName, ip);
+        if (selected.isEmpty()) {
+            return;
         }
-        Map<String,List<Node>> serviceNode = new HashMap<>();
-        List<Node> nodes = registryMapping.get(serverName);
-        List<Node> servers = new ArrayList<>();
-        if (StringUtils.isEmpty(ip)) {
-            servers.addAll(nodes);
-        } else {
-            for (Node server : nodes){
-                if (ip.equals(server.getIp())) {
-                    nodes.add(server);
-                    break;
+        Set<InstanceRecord> removed = new HashSet<>(selected.size());
+        for (InstanceRecord node : selected) {
+            if (partition.instanceMapping.remove(node, node)) {
+                unindexIp(partition, node);
+                removed.add(node);
+            }
+        }
+        publish(partition, serviceName, (nodes, change) -> {
+            Iterator<InstanceRecord> iterator = nodes.iterator();
+            while (iterator.hasNext()) {
+                InstanceRecord node = iterator.next();
+                if (removed.contains(node)) {
+                    iterator.remove();
+                    change.removed(node);
                 }
             }
+        });
+        for (InstanceRecord node : removed) {
+            node.release();
         }
-        serviceNode.put(serverName,servers);
-        return serviceNode;
     }
 
-    public static List<Node> fetchCallerNode(String callerName) {
-        List<String> strings = discoveryMapping.get(callerName);
-        List<Node> caller = new ArrayList<>();
-        for (String server : strings) {
-            caller.addAll(registryMapping.get(server));
+
+    /**
+     *  订阅了这个服务的 caller
+     */
+    private static List<String> callers(String serviceName) {
+        return RegistryPartition.of(serviceName).discoveryChangeMapping.get(serviceName);
+    }
+
+
+    /**
+     *  写入实例索引和 ip 索引, 记录被替换的同 key 旧实例
+     */
+    private static void put(RegistryPartition partition, InstanceRecord node, Map<InstanceRecord, InstanceRecord> replaced) {
+        InstanceRecord previous = partition.instanceMapping.put(node, node);
+        if (previous != null) {
+            unindexIp(partition, previous);
+            replaced.put(node, previous);
         }
-        return caller;
+        indexIp(partition, node);
     }
 
-    public static void openNode(String serviceName,String ip) {
-        List<Node> nodes = registryMapping.get(serviceName);
-        for (Node node : nodes) {
-            if (StringUtils.isNotEmpty(ip)) {
-                if (ip.equals(node.getIp())) {
-                    node.setRunning(true);
-                }
-            } else {
-                node.setRunning(true);
+
+    /**
+     *  按 ip 过滤服务实例, 指定 ip 时走 ip 索引, 不扫描整个服务
+     */
+    private static List<InstanceRecord> selectNodes(RegistryPartition partition, String serviceName, String ip) {
+        if (StringUtils.isEmpty(ip)) {
+            Staged pending = partition.inWriter() ? partition.staged.get(serviceName) : null;
+            if (pending != null) {
+                // 写线程要看到本批次里已经暂存的变更
+                return new ArrayList<>(pending.nodes);
             }
+            ServiceView view = partition.registryMapping.get(serviceName);
+            return view == null ? List.of() : view.getNodes();
         }
+        Set<InstanceRecord> nodes = partition.ipMapping.get(ip);
+        if (nodes == null) {
+            return List.of();
+        }
+        List<InstanceRecord> selected = new ArrayList<>();
+        for (InstanceRecord node : nodes) {
+            if (node.getServiceName().equals(serviceName)) {
+                selected.add(node);
+            }
+        }
+        return selected;
     }
 
 
-    public static void closeNode(String serviceName,String ip) {
-        List<Node> nodes = registryMapping.get(serviceName);
-        for (Node node : nodes) {
-            if (StringUtils.isNotEmpty(ip)) {
-                if (ip.equals(node.getIp())) {
-                    node.setRunning(false);
+    private static void indexIp(RegistryPartition partition, InstanceRecord node) {
+        partition.ipMapping.compute(node.getIp(), (ip, nodes) -> {
+            if (nodes == null) {
+                nodes = ConcurrentHashMap.newKeySet();
+            }
+            nodes.add(node);
+            return nodes;
+        });
+    }
+
+    private static void unindexIp(RegistryPartition partition, InstanceRecord node) {
+        partition.ipMapping.computeIfPresent(node.getIp(), (ip, nodes) -> {
+            nodes.remove(node);
+            return nodes.isEmpty() ? null : nodes;
+        });
+    }
+
+
+    /**
+     *  在写线程里把变更暂存到服务当前快照的副本上, 同一批次的变更累加在同一个副本上
+     *  变更为空时不暂存
+     */
+    private static void publish(RegistryPartition partition, String serviceName,
+                                BiConsumer<List<InstanceRecord>, ServiceChange> mutation) {
+        Staged pending = partition.staged.get(serviceName);
+        if (pending == null) {
+            ServiceView current = partition.registryMapping.get(serviceName);
+            if (current == null) {
+                ServiceView empty = ServiceView.empty(serviceName);
+                current = partition.registryMapping.putIfAbsent(serviceName, empty);
+                if (current == null) {
+                    current = empty;
                 }
-            } else {
-                node.setRunning(false);
             }
+            pending = new Staged(current);
+        }
+        ServiceChange change = new ServiceChange(pending.base.getRevision() + 1);
+        mutation.accept(pending.nodes, change);
+        if (change.isEmpty()) {
+            return;
         }
+        pending.changes.add(change);
+        partition.staged.putIfAbsent(serviceName, pending);
     }
 
-    public static void deleteNode(String serviceName,String ip) {
-        List<Node> nodes = registryMapping.get(serviceName);
-        Iterator<Node> iterator = nodes.iterator();
-        while (iterator.hasNext()) {
-            if (StringUtils.isNotEmpty(ip)) {
-                Node node = iterator.next();
-                if (ip.equals(node.getIp())) {
+
+    /**
+     *  批次结束, 每个暂存的服务合并成一个变更, 发布一个新快照并通知一次
+     *  之前有变更或发布失败过时, 先以实例索引为准重建暂存(见 reconcile)
+     *  发布到一半失败时, 已经替换的快照照常写日志和复制, 其余的由下一批次重建后发布
+     *  只在分区的写线程调用
+     */
+    static void flush(RegistryPartition partition) {
+        if (partition.dirty) {
+            reconcile(partition);
+        }
+        if (partition.staged.isEmpty()) {
+            return;
+        }
+        List<ServiceChange> published = new ArrayList<>(partition.staged.size());
+        try {
+            Iterator<Map.Entry<String, Staged>> iterator = partition.staged.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Staged> entry = iterator.next();
+                String serviceName = entry.getKey();
+                Staged pending = entry.getValue();
+                ServiceView current = pending.base;
+                ServiceChange change = ServiceChange.merge(current.getRevision() + 1, pending.changes);
+                if (change.isEmpty()) {
+                    // 例如同一批次里注册后又被删除
                     iterator.remove();
+                    continue;
                 }
-            } else {
+                for (InstanceRecord node : change.getAdded()) {
+                    node.publish();
+                }
+                for (InstanceRecord node : change.getModified()) {
+                    node.publish();
+                }
+                ServiceView next = current.next(pending.nodes);
+                if (next.isDegraded() != current.isDegraded()) {
+                    // 是否退化切换时, 不健康实例整体进出 activeNodes, 增量里要带上它们
+                    for (InstanceRecord node : pending.nodes) {
+                        if (node.isActive() && !node.isHealthy() && !change.getModified().contains(node)) {
+                            change.modified(node);
+                        }
+                    }
+                }
+                next.getChangeLog().append(change);
+                // 只有分区的写线程替换快照, 替换后这个服务就算发布了
+                partition.registryMapping.put(serviceName, next);
                 iterator.remove();
+                published.add(change);
+                index(partition, serviceName, change);
+                DiscoveryManager.serviceChanged(serviceName);
+            }
+        } finally {
+            if (!published.isEmpty()) {
+                RegistryPersistence.append(partition.getId(), published);
+                RegistryCluster.published(published);
+            }
+        }
+    }
+
+
+    /**
+     *  变更执行到一半或者发布失败后, 暂存的变更和实例索引可能对不上
+     *  丢弃暂存, 以实例索引为准修正 ip 索引, 再把每个服务当前快照和实例索引的差异作为一次变更暂存:
+     *  索引里没有的实例算删除, 同 key 换了实例或者有没发布的草稿算修改, 快照里没有的算新增
+     */
+    private static void reconcile(RegistryPartition partition) {
+        partition.staged.clear();
+        Map<String, Map<InstanceRecord, InstanceRecord>> byService = new HashMap<>();
+        for (InstanceRecord node : partition.instanceMapping.values()) {
+            byService.computeIfAbsent(node.getServiceName(), k -> new HashMap<>()).put(node, node);
+        }
+        for (Set<InstanceRecord> nodes : partition.ipMapping.values()) {
+            nodes.removeIf(node -> partition.instanceMapping.get(node) != node);
+        }
+        partition.ipMapping.values().removeIf(Set::isEmpty);
+        for (InstanceRecord node : partition.instanceMapping.values()) {
+            indexIp(partition, node);
+        }
+        Set<String> services = new HashSet<>(partition.registryMapping.keySet());
+        services.addAll(byService.keySet());
+        for (String serviceName : services) {
+            Map<InstanceRecord, InstanceRecord> indexed = byService.getOrDefault(serviceName, Map.of());
+            List<InstanceRecord> removed = new ArrayList<>();
+            publish(partition, serviceName, (nodes, change) -> {
+                Set<InstanceRecord> present = Collections.newSetFromMap(new IdentityHashMap<>());
+                ListIterator<InstanceRecord> iterator = nodes.listIterator();
+                while (iterator.hasNext()) {
+                    InstanceRecord node = iterator.next();
+                    InstanceRecord current = indexed.get(node);
+                    if (current == null) {
+                        iterator.remove();
+                        change.removed(node);
+                        removed.add(node);
+                    } else if (current != node) {
+                        iterator.set(current);
+                        present.add(current);
+                        change.modified(current);
+                        removed.add(node);
+                    } else {
+                        present.add(node);
+                        if (node.hasDraft()) {
+                            change.modified(node);
+                        }
+                    }
+                }
+                for (InstanceRecord node : indexed.keySet()) {
+                    if (!present.contains(node)) {
+                        nodes.add(node);
+                        change.added(node);
+                    }
+                }
+            });
+            for (InstanceRecord node : removed) {
+                node.release();
             }
         }
+        partition.dirty = false;
+    }
+
+
+    private static void index(RegistryPartition partition, String serviceName, ServiceChange change) {
+        InvertedIndex index = partition.indexMapping.computeIfAbsent(serviceName, k -> new InvertedIndex());
+        for (InstanceRecord node : change.getRemoved()) {
+            index.unindex(node);
+        }
+        for (InstanceRecord node : change.getAdded()) {
+            index.index(node);
+        }
+        for (InstanceRecord node : change.getModified()) {
+            index.index(node);
+        }
     }
 
+
+
+    /**
+     *  一个服务在当前批次里的暂存状态
+     */
+    static final class Staged {
+
+        private final ServiceView base;
+
+        private final List<InstanceRecord> nodes;
+
+        private final List<ServiceChange> changes = new ArrayList<>(1);
+
+        private Staged(ServiceView base) {
+            this.base = base;
+            this.nodes = new ArrayList<>(base.getNodes());
+        }
+    }
 }
@@ -0,0 +1,94 @@
+package com.bin.registry.server.core;
+
+import com.bin.registry.server.core.store.InstanceRecord;
+
+/**
+ *  phi-accrual 故障检测
+ *
+ *  按实例最近的心跳间隔估计正态分布, phi = -log10(到现在还没收到心跳的概率),
+ *  phi 为 1 时误判概率约 10%, 为 8 时约 10^-8
+ *  心跳抖动大的实例需要更长的空闲时间才会被怀疑, 心跳稳定的实例更早被发现
+ */
+public final class PhiAccrual {
+
+    /**
+     * 样本数少于这个值时统计不可信, 按固定时长判定
+     */
+    public static final int MIN_SAMPLES = 4;
+
+    /**
+     * 标准差下限, 心跳非常规律时避免一点延迟就被怀疑
+     */
+    public static final double MIN_STD_DEVIATION_MS = 500;
+
+    private final double mean;
+
+    private final double stdDeviation;
+
+    private PhiAccrual(double mean, double stdDeviation) {
+        this.mean = mean;
+        this.stdDeviation = stdDeviation;
+    }
+
+    /**
+     * 样本不足时返回 null
+     */
+    public static PhiAccrual of(InstanceRecord node) {
+        int count = node.intervalCount();
+        if (count < MIN_SAMPLES) {
+            return null;
+        }
+        double sum = 0;
+        double squares = 0;
+        for (int i = 0; i < count; i++) {
+            double interval = node.interval(i);
+            sum += interval;
+            squares += interval * interval;
+        }
+        double mean = sum / count;
+        double variance = Math.max(squares / count - mean * mean, 0);
+        return new PhiAccrual(mean, Math.max(Math.sqrt(variance), MIN_STD_DEVIATION_MS));
+    }
+
+    /**
+     * 距离上次心跳 idleMs 时的 phi, 用 logistic 函数近似正态分布的累积概率
+     */
+    public double phi(long idleMs) {
+        double y = (idleMs - mean) / stdDeviation;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        if (idleMs > mean) {
+            return -Math.log10(e / (1.0 + e));
+        } else {
+            return -Math.log10(1.0 - 1.0 / (1.0 + e));
+        }
+    }
+
+    /**
+     * phi 达到 threshold 需要的空闲时长, 不超过 maxMs
+     * phi 随空闲时间单调递增, 二分查找
+     */
+    public long idleFor(double threshold, long maxMs) {
+        if (phi(maxMs) < threshold) {
+            return maxMs;
+        }
+        long low = 0;
+        long high = maxMs;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            if (phi(mid) >= threshold) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public double getStdDeviation() {
+        return stdDeviation;
+    }
+}
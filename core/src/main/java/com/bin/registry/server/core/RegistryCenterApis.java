@@ -3,19 +3,33 @@ package com.bin.registry.server.core;
 
 import com.bin.registry.server.common.utils.IpUtils;
 import com.bin.registry.server.common.utils.JsonUtils;
+import com.bin.registry.server.common.utils.MD5Utils;
+import com.bin.registry.server.common.utils.StringUtils;
+import com.bin.registry.server.core.cluster.RegistryCluster;
+import com.bin.registry.server.core.store.InstanceRecord;
 import com.bin.registry.server.http.NettyHttpRequest;
+import com.bin.registry.server.http.NettyHttpResponse;
 import com.bin.registry.server.model.CallerInstance;
+import com.bin.registry.server.model.Heartbeat;
 import com.bin.registry.server.model.JsonResult;
 import com.bin.registry.server.model.Node;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
 import io.netty.channel.Channel;
+import io.netty.handler.codec.http.QueryStringDecoder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Date;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -28,6 +42,11 @@ public class RegistryCenterApis {
 
     private static Logger logger = LoggerFactory.getLogger(RegistryCenterApis.class);
 
+    /**
+     * 轻量心跳要求客户端重新注册
+     */
+    public static final String REREGISTER = "reregister";
+
 
 
 
@@ -36,7 +55,10 @@ public class RegistryCenterApis {
     }
 
 
-    public JsonResult<List<Node>> discovery(Channel channel, NettyHttpRequest nettyHttpRequest) {
+    /**
+     *  返回 null 表示请求已挂起, 由 DelayedDiscovery 或者等待其他机房实例的回调负责写回
+     */
+    public JsonResult<?> discovery(Channel channel, NettyHttpRequest nettyHttpRequest) {
         CallerInstance caller = null;
         if (nettyHttpRequest.content().isReadable()) {
             caller = JsonUtils.readCaller(nettyHttpRequest.content());
@@ -45,13 +67,31 @@ public class RegistryCenterApis {
     }
 
 
-    public JsonResult<List<Node>> poll(Channel channel,CallerInstance caller) {
-        if (caller != null) {
+    public JsonResult<?> poll(Channel channel,CallerInstance caller) {
+        if (caller != null && caller.getServerInfo() != null) {
             String callerName = caller.getCallerName();
             Set<String> serverInfo = caller.getServerInfo();
             NodeManager.registryCaller(callerName,serverInfo);
-            Map<String,List<Node>> nodes = NodeManager.callerFetchNode(callerName, serverInfo);
-           return JsonResult.<List<Node>>ok("success",nodes);
+            if (caller.getRevisions() == null && caller.getChecksums() == null) {
+                CompletableFuture<Map<String,List<InstanceRecord>>> fetched = NodeManager.callerFetchNode(callerName, serverInfo);
+                if (fetched.isDone() && !fetched.isCompletedExceptionally()) {
+                    return JsonResult.<List<InstanceRecord>>ok("success",fetched.join());
+                }
+                // 在等其他机房的实例, 拉到或超时后在连接的 event loop 上写回, 失败时也要回复
+                fetched.whenCompleteAsync((nodes, e) -> {
+                    if (e != null) {
+                        logger.error("fetch nodes of caller {} failed", callerName, e);
+                    }
+                    channel.writeAndFlush(NettyHttpResponse.ok(e == null
+                            ? JsonResult.ok("success", nodes) : JsonResult.failed("fetch nodes failed", null)));
+                }, channel.eventLoop());
+                return null;
+            }
+            // 长轮询: 没有变化时挂起, 直到服务变更或超时
+            if (DiscoveryManager.watch(channel, caller)) {
+                return null;
+            }
+            return JsonResult.ok("success", DiscoveryManager.fetch(caller));
         } else {
             return JsonResult.<List<Node>>failed("caller info is null",null);
         }
@@ -60,59 +100,222 @@ public class RegistryCenterApis {
 
 
 
-    public JsonResult<Boolean> registry(Channel channel, NettyHttpRequest nettyHttpRequest) {
+    /**
+     *  返回的 future 在实例发布后完成, 由调用方写回
+     */
+    public CompletableFuture<JsonResult<Boolean>> registry(Channel channel, NettyHttpRequest nettyHttpRequest) {
         Node node = null;
+        long registration = 0L;
         if (nettyHttpRequest.content().isReadable()) {
-            node = JsonUtils.readNode(nettyHttpRequest.content());
+            JsonObject item = JsonUtils.readObject(nettyHttpRequest.content());
+            if (item != null) {
+                registration = registration(item);
+                node = JsonUtils.fromJson(item, Node.class);
+            }
         }
-       return push(channel,node);
+       return push(channel,node,registration);
+    }
+
+    public CompletableFuture<JsonResult<Boolean>> push(Channel channel,Node node) {
+        return push(channel, node, 0L);
     }
 
-    public JsonResult<Boolean> push(Channel channel,Node node) {
+    public CompletableFuture<JsonResult<Boolean>> push(Channel channel,Node node,long registration) {
         if (node != null) {
             String host = IpUtils.resoleHost(channel.remoteAddress());
             node.setIp(host);
 
-            registerNode(node);
-            return JsonResult.<Boolean>ok("success",true);
+            return registerNodes(channel, List.of(node), new long[]{registration})
+                    .thenApply(v -> new JsonResult<>(JsonResult.SUCCESS_CODE, "success", true));
         } else {
-           return JsonResult.<Boolean>failed("node info is null",false);
+           return CompletableFuture.completedFuture(new JsonResult<>(JsonResult.FAIL_CODE, "node info is null", false));
         }
     }
-    private void registerNode(Node node) {
 
-        Node oldNode = NodeManager.isRegistry(node);
-        if (oldNode != null) {
-            if (!oldNode.isActive() && node.isActive()) {
-                oldNode.setOnLineTime(new Date());
+
+    /**
+     *  批量注册, 请求体是 Node 数组, 按顺序返回每个实例的结果
+     *  每个实例的注册摘要和单个注册一样, 按 registration(JsonElement) 的规范形式计算
+     */
+    public CompletableFuture<JsonResult<List<JsonResult<Boolean>>>> registryBatch(Channel channel, NettyHttpRequest nettyHttpRequest) {
+        if (!nettyHttpRequest.content().isReadable()) {
+            return CompletableFuture.completedFuture(new JsonResult<>(JsonResult.FAIL_CODE, "node info is null", null));
+        }
+        JsonArray items = JsonUtils.readArray(nettyHttpRequest.content());
+        if (items == null) {
+            return CompletableFuture.completedFuture(new JsonResult<>(JsonResult.FAIL_CODE, "node info is not array", null));
+        }
+        String host = IpUtils.resoleHost(channel.remoteAddress());
+        List<JsonResult<Boolean>> results = new ArrayList<>(items.size());
+        List<Node> nodes = new ArrayList<>(items.size());
+        long[] registrations = new long[items.size()];
+        for (JsonElement item : items) {
+            Node node = item.isJsonObject() ? JsonUtils.fromJson(item, Node.class) : null;
+            if (node == null) {
+                results.add(JsonResult.<Boolean>failed("node info is null",false));
+                continue;
             }
-            oldNode.setHeartbeatTime(System.currentTimeMillis());
-            oldNode.setRunning(node.getRunning());
-            oldNode.setTags(node.getTags());
-            oldNode.setWeight(node.getWeight());
-            oldNode.setMetadata(node.getMetadata());
-            oldNode.setServiceId(node.getServiceId());
-            oldNode.setPid(node.getPid());
-            oldNode.setSystemEnv(node.getSystemEnv());
-            oldNode.setZoneName(node.getZoneName());
-            oldNode.setGroupArray(node.getGroupArray());
-            oldNode.setContainer(node.getContainer());
-            HeartbeatManager.againHeartbeat(oldNode);
-            NodeManager.agentRegistryNode(oldNode);
-        } else {
-            // 第一次  nodeOnline  存储,
-            Date date = new Date();
-            node.setCreateTime(date);
-            node.setOnLineTime(date);
-            List<String> callers = NodeManager.registryNode(node);
+            node.setIp(host);
+            registrations[nodes.size()] = registration(item);
+            nodes.add(node);
+            results.add(JsonResult.<Boolean>ok("success",true));
+        }
+        return registerNodes(channel, nodes, registrations)
+                .thenApply(v -> new JsonResult<>(JsonResult.SUCCESS_CODE, "success", results));
+    }
+
+
+    /**
+     *  轻量心跳, 只带实例 key: /node/heartbeat?serviceName=a&port=8080&checksum=xxx
+     *  checksum 是最近一次注册的实例的规范 json 的 md5(见 registration(JsonElement)), 可选
+     *  实例不存在或摘要不一致时返回 REREGISTER, 客户端需要重新走 /node/registry
+     */
+    public JsonResult<Boolean> heartbeat(Channel channel, NettyHttpRequest nettyHttpRequest) {
+        QueryStringDecoder decoder = new QueryStringDecoder(nettyHttpRequest.uri());
+        Map<String, List<String>> parameters = decoder.parameters();
+        String serviceName = first(parameters, "serviceName");
+        String port = first(parameters, "port");
+        if (StringUtils.isEmpty(serviceName) || !StringUtils.isInteger(port)) {
+            return JsonResult.<Boolean>failed("serviceName and port are required",false);
+        }
+        String host = IpUtils.resoleHost(channel.remoteAddress());
+        return beat(host, serviceName, Integer.valueOf(port), first(parameters, "checksum"));
+    }
+
+
+    /**
+     *  批量心跳, 请求体是 [{"serviceName":"a","port":8080,"checksum":"xxx"}], 按顺序返回每个实例的结果
+     */
+    public JsonResult<List<JsonResult<Boolean>>> heartbeatBatch(Channel channel, NettyHttpRequest nettyHttpRequest) {
+        List<Heartbeat> heartbeats = null;
+        if (nettyHttpRequest.content().isReadable()) {
+            heartbeats = JsonUtils.readHeartbeats(nettyHttpRequest.content());
+        }
+        if (heartbeats == null) {
+            return JsonResult.failed("heartbeat info is null",null);
+        }
+        String host = IpUtils.resoleHost(channel.remoteAddress());
+        List<JsonResult<Boolean>> results = new ArrayList<>(heartbeats.size());
+        for (Heartbeat heartbeat : heartbeats) {
+            if (heartbeat == null || StringUtils.isEmpty(heartbeat.getServiceName()) || heartbeat.getPort() == null) {
+                results.add(JsonResult.<Boolean>failed("serviceName and port are required",false));
+                continue;
+            }
+            results.add(beat(host, heartbeat.getServiceName(), heartbeat.getPort(), heartbeat.getChecksum()));
+        }
+        return JsonResult.ok("success",results);
+    }
+
 
-            HeartbeatManager.heartbeat(node);
+    private JsonResult<Boolean> beat(String host, String serviceName, Integer port, String checksum) {
+        InstanceRecord probe = InstanceRecord.probe(serviceName, host, port);
+        InstanceRecord record = probe == null ? null : NodeManager.isRegistry(probe);
+        if (record == null) {
+            return JsonResult.<Boolean>failed(REREGISTER,false);
         }
+        if (StringUtils.isNotEmpty(checksum) && record.getRegistration() != 0L) {
+            long registration;
+            try {
+                registration = registration(new BigInteger(checksum, 16));
+            } catch (NumberFormatException e) {
+                return JsonResult.<Boolean>failed("checksum is not hex",false);
+            }
+            if (record.getRegistration() != registration) {
+                return JsonResult.<Boolean>failed(REREGISTER,false);
+            }
+        }
+        record.renewHeartbeat(System.currentTimeMillis());
+        HeartbeatManager.againHeartbeat(record);
+        RegistryCluster.heartbeat(record);
+        return JsonResult.<Boolean>ok("success",true);
     }
 
 
+    /**
+     *  已注册的实例刷新心跳, 内容有变化时交给 NodeManager 暂存修改; 新实例建好记录
+     *  最后一次性交给 NodeManager, 每个服务只发布一次快照
+     *  查找和修改都在服务所在分区的写线程里执行, 同一个实例的并发注册不会交错
+     *  调用线程不等待写线程, 返回的 future 在连接的 event loop 上完成, 之后的心跳检查也在那里挂上
+     */
+    private CompletableFuture<Void> registerNodes(Channel channel, List<Node> nodes, long[] registrations) {
+        List<InstanceRecord> added = Collections.synchronizedList(new ArrayList<>());
+        List<InstanceRecord> renewed = Collections.synchronizedList(new ArrayList<>());
+        List<Integer> indexes = new ArrayList<>(nodes.size());
+        for (int i = 0; i < nodes.size(); i++) {
+            indexes.add(i);
+        }
+        Map<RegistryPartition, List<Integer>> byPartition =
+                RegistryPartition.group(indexes, i -> nodes.get(i).getServiceName());
+        return RegistryPartition.applyAll(byPartition.keySet(),
+                partition -> putNodes(nodes, registrations, byPartition.get(partition), added, renewed))
+                .thenRunAsync(() -> {
+                    for (InstanceRecord record : renewed) {
+                        HeartbeatManager.againHeartbeat(record);
+                        RegistryCluster.heartbeat(record);
+                    }
+                    for (InstanceRecord record : added) {
+                        HeartbeatManager.heartbeat(record);
+                    }
+                }, channel.eventLoop());
+    }
 
 
+    private void putNodes(List<Node> nodes, long[] registrations, List<Integer> indexes,
+                          List<InstanceRecord> added, List<InstanceRecord> renewed) {
+        List<InstanceRecord> created = new ArrayList<>();
+        Map<InstanceRecord, Node> modified = new HashMap<>();
+        long now = System.currentTimeMillis();
+        for (int i : indexes) {
+            Node node = nodes.get(i);
+            long registration = registrations[i];
+            InstanceRecord probe = InstanceRecord.probe(node);
+            InstanceRecord oldNode = probe == null ? null : NodeManager.isRegistry(probe);
+            if (oldNode != null) {
+                oldNode.renewHeartbeat(now);
+                // 内容没变的心跳只刷新时间, 不发布新快照; 变了的交给写线程修改
+                if (!oldNode.content().sameContent(node)) {
+                    modified.put(oldNode, node);
+                }
+                if (registration != 0L) {
+                    oldNode.setRegistration(registration);
+                }
+                renewed.add(oldNode);
+            } else {
+                // 第一次  nodeOnline  存储,
+                InstanceRecord record = InstanceRecord.of(node);
+                record.setCreateTime(now);
+                record.setOnLineTime(now);
+                record.setHeartbeatTime(now);
+                record.setRegistration(registration);
+                created.add(record);
+            }
+        }
+        if (!created.isEmpty() || !modified.isEmpty()) {
+            NodeManager.registryNodes(created, modified);
+        }
+        added.addAll(created);
+    }
+
+
+    /**
+     *  注册摘要: 实例 json 的规范形式的 md5 低 64 位
+     *  规范形式是解析后重新输出的紧凑 json: 字段保持请求里的顺序, 没有空白,
+     *  字符串只转义引号, 反斜杠, 控制字符和 U+2028/U+2029, 数字保持原文
+     *  单个注册的请求体和批量注册数组里的每个元素都按这个形式计算,
+     *  客户端用紧凑 json 发送时, 对发送的实例 json 求 md5 即可
+     */
+    private static long registration(JsonElement item) {
+        return registration(new BigInteger(MD5Utils.md5(item.toString()), 16));
+    }
+
+    private static long registration(BigInteger md5) {
+        return md5.longValue();
+    }
+
+    private static String first(Map<String, List<String>> parameters, String name) {
+        List<String> values = parameters.get(name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
 
 
     private ExecutorService initPool(int coreSize, int maximumSize, String poolName) {
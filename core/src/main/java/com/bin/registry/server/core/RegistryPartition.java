@@ -0,0 +1,168 @@
+package com.bin.registry.server.core;
+
+import com.bin.registry.server.RegistryCenter;
+import com.bin.registry.server.common.collect.NonBlockingHashMap;
+import com.bin.registry.server.core.store.InstanceRecord;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ *  注册表分区
+ *
+ *  服务名按哈希分到固定的分区, 一个服务的快照, 实例索引, 倒排索引和订阅关系都只在它的分区里,
+ *  由分区自己的写线程修改; 不同分区之间没有共享的可变状态, 写入随分区数扩展
+ *  分区数默认和 NettyHttpServer 的 event loop 数一致
+ *
+ *  订阅方(caller)的订阅列表按 caller 名分区
+ */
+public final class RegistryPartition {
+
+    public static final int DEFAULT_PARTITIONS = 8;
+
+    private static final RegistryPartition[] partitions = create(
+            Integer.parseInt(RegistryCenter.getProperty(RegistryCenter.PARTITIONS, String.valueOf(DEFAULT_PARTITIONS))),
+            Integer.parseInt(RegistryCenter.getProperty(RegistryCenter.WRITER_RING_SIZE,
+                    String.valueOf(RegistryWriter.DEFAULT_RING_SIZE))));
+
+    private final int id;
+
+    /**
+     *  服务 -> 不可变快照
+     */
+    final ConcurrentMap<String, ServiceView> registryMapping = new NonBlockingHashMap<>();
+
+    /**
+     *  实例索引, key 为 serviceName + ip + port (InstanceRecord.equals)
+     */
+    final ConcurrentMap<InstanceRecord, InstanceRecord> instanceMapping = new NonBlockingHashMap<>();
+
+    /**
+     *  ip 二级索引, 同一个 ip 上本分区所有服务的实例
+     */
+    final ConcurrentMap<String, Set<InstanceRecord>> ipMapping = new ConcurrentHashMap<>();
+
+    /**
+     *  每个服务的 zone/tags/group/cluster/env 倒排索引
+     */
+    final ConcurrentMap<String, InvertedIndex> indexMapping = new ConcurrentHashMap<>();
+
+    /**
+     *  caller -> 订阅的服务, value 是不可变列表
+     */
+    final ConcurrentMap<String, List<String>> discoveryMapping = new NonBlockingHashMap<>();
+
+    /**
+     *  服务 -> 订阅它的 caller, value 是不可变列表
+     */
+    final ConcurrentMap<String, List<String>> discoveryChangeMapping = new NonBlockingHashMap<>();
+
+    /**
+     *  当前批次里还没发布的服务变更, 只有写线程访问
+     */
+    final Map<String, NodeManager.Staged> staged = new HashMap<>();
+
+    /**
+     *  有变更或者发布失败过, 暂存可能不完整, 下次发布前要以实例索引为准重建, 只有写线程访问
+     */
+    boolean dirty;
+
+    final RegistryWriter writer;
+
+    private RegistryPartition(int id, int ringSize) {
+        this.id = id;
+        this.writer = new RegistryWriter("registry-writer-" + id, ringSize,
+                () -> dirty = true, () -> NodeManager.flush(this));
+    }
+
+    private static RegistryPartition[] create(int count, int ringSize) {
+        RegistryPartition[] created = new RegistryPartition[Math.max(1, count)];
+        for (int i = 0; i < created.length; i++) {
+            created[i] = new RegistryPartition(i, ringSize);
+        }
+        return created;
+    }
+
+    /**
+     * 服务(或 caller)所在的分区
+     */
+    public static RegistryPartition of(String name) {
+        int h = name.hashCode();
+        h ^= (h >>> 16);
+        return partitions[(h & Integer.MAX_VALUE) % partitions.length];
+    }
+
+    public static RegistryPartition[] all() {
+        return partitions;
+    }
+
+    public static int count() {
+        return partitions.length;
+    }
+
+    /**
+     * 按分区分组, 保持组内顺序
+     */
+    public static <T> Map<RegistryPartition, List<T>> group(Collection<T> items, Function<T, String> name) {
+        Map<RegistryPartition, List<T>> grouped = new LinkedHashMap<>();
+        for (T item : items) {
+            grouped.computeIfAbsent(of(name.apply(item)), k -> new ArrayList<>()).add(item);
+        }
+        return grouped;
+    }
+
+    /**
+     * 每个分区的写线程各自执行, 返回的 future 在全部发布后完成, 不阻塞调用线程
+     * 当前线程就是某个分区的写线程时, 这个分区直接执行; 写线程里不能等待返回的 future
+     */
+    public static CompletableFuture<Void> applyAll(Collection<RegistryPartition> targets, Consumer<RegistryPartition> action) {
+        List<CompletableFuture<Void>> pending = new ArrayList<>(targets.size());
+        for (RegistryPartition partition : targets) {
+            if (partition.writer.inWriter()) {
+                action.accept(partition);
+            } else {
+                pending.add(partition.writer.submit(() -> action.accept(partition)));
+            }
+        }
+        if (pending.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if (pending.size() == 1) {
+            return pending.get(0);
+        }
+        return CompletableFuture.allOf(pending.toArray(CompletableFuture<?>[]::new));
+    }
+
+    public void apply(Runnable action) {
+        writer.apply(action);
+    }
+
+    public CompletableFuture<Void> submit(Runnable action) {
+        return writer.submit(action);
+    }
+
+    /**
+     * 分区里所有服务当前的快照
+     */
+    public Collection<ServiceView> views() {
+        return registryMapping.values();
+    }
+
+    public boolean inWriter() {
+        return writer.inWriter();
+    }
+
+    public int getId() {
+        return id;
+    }
+}
@@ -0,0 +1,163 @@
+package com.bin.registry.server.core;
+
+import com.lmax.disruptor.BlockingWaitStrategy;
+import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.EventTranslatorTwoArg;
+import com.lmax.disruptor.dsl.Disruptor;
+import com.lmax.disruptor.dsl.ProducerType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ *  注册表分区的单写线程
+ *
+ *  分区内的注册, 剔除, 健康变化, 上下线和删除都作为事件进入 Disruptor 环形缓冲,
+ *  由唯一的写线程按顺序执行, 分区内所有变更有一个全局顺序, 写路径上没有锁竞争
+ *
+ *  一批事件执行完后调用 onBatchEnd 发布暂存的快照,
+ *  然后才通知等待的调用方, 调用方返回时一定能读到自己的写入
+ *  变更或者发布抛出异常时先调用 onFailure, 由分区丢弃不完整的暂存;
+ *  发布失败时这一批的调用方都以异常完成
+ */
+public final class RegistryWriter {
+
+    private static Logger logger = LoggerFactory.getLogger(RegistryWriter.class);
+
+    public static final int DEFAULT_RING_SIZE = 1 << 16;
+
+    private static final EventTranslatorTwoArg<Mutation, Runnable, CompletableFuture<Void>> TRANSLATOR =
+            (event, sequence, action, done) -> {
+                event.action = action;
+                event.done = done;
+            };
+
+    private final Disruptor<Mutation> disruptor;
+
+    private volatile Thread writerThread;
+
+    public RegistryWriter(String name, int ringSize, Runnable onFailure, Runnable onBatchEnd) {
+        disruptor = new Disruptor<>(Mutation::new, ringSize,
+                runnable -> {
+                    Thread thread = new Thread(runnable, name);
+                    thread.setDaemon(true);
+                    writerThread = thread;
+                    return thread;
+                },
+                ProducerType.MULTI, new BlockingWaitStrategy());
+        disruptor.handleEventsWith(new Writer(onFailure, onBatchEnd));
+        disruptor.start();
+    }
+
+    /**
+     * 交给写线程执行并等待发布完成, 已经在写线程里时直接执行
+     */
+    public void apply(Runnable action) {
+        if (inWriter()) {
+            action.run();
+            return;
+        }
+        await(submit(action));
+    }
+
+    /**
+     * 交给写线程执行, 不等待
+     */
+    public CompletableFuture<Void> submit(Runnable action) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        disruptor.publishEvent(TRANSLATOR, action, done);
+        return done;
+    }
+
+    public boolean inWriter() {
+        return Thread.currentThread() == writerThread;
+    }
+
+    public void shutdown() {
+        disruptor.shutdown();
+    }
+
+    /**
+     * 等待变更发布, 变更抛出的运行时异常原样抛给调用方
+     */
+    public static void await(CompletableFuture<Void> done) {
+        try {
+            done.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+
+    private static final class Mutation {
+
+        private Runnable action;
+
+        private CompletableFuture<Void> done;
+    }
+
+
+    private static final class Writer implements EventHandler<Mutation> {
+
+        private final Runnable onFailure;
+
+        private final Runnable onBatchEnd;
+
+        /**
+         * 当前批次里等待发布的调用方
+         */
+        private final List<CompletableFuture<Void>> waiting = new ArrayList<>();
+
+        private final List<Throwable> failures = new ArrayList<>();
+
+        private Writer(Runnable onFailure, Runnable onBatchEnd) {
+            this.onFailure = onFailure;
+            this.onBatchEnd = onBatchEnd;
+        }
+
+        @Override
+        public void onEvent(Mutation event, long sequence, boolean endOfBatch) {
+            Runnable action = event.action;
+            CompletableFuture<Void> done = event.done;
+            event.action = null;
+            event.done = null;
+            Throwable failure = null;
+            try {
+                action.run();
+            } catch (Throwable e) {
+                logger.error("registry mutation failed", e);
+                failure = e;
+                onFailure.run();
+            }
+            waiting.add(done);
+            failures.add(failure);
+            if (endOfBatch) {
+                Throwable publishFailure = null;
+                try {
+                    onBatchEnd.run();
+                } catch (Throwable e) {
+                    logger.error("registry publish failed", e);
+                    publishFailure = e;
+                    onFailure.run();
+                }
+                for (int i = 0; i < waiting.size(); i++) {
+                    Throwable cause = failures.get(i) != null ? failures.get(i) : publishFailure;
+                    if (cause == null) {
+                        waiting.get(i).complete(null);
+                    } else {
+                        waiting.get(i).completeExceptionally(cause);
+                    }
+                }
+                waiting.clear();
+                failures.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.bin.registry.server.core;
+
+import com.bin.registry.server.core.store.InstanceRecord;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *  一次发布(一个 revision)内发生的实例变更
+ */
+public final class ServiceChange {
+
+    private final long revision;
+
+    private final List<InstanceRecord> added = new ArrayList<>(1);
+
+    private final List<InstanceRecord> modified = new ArrayList<>(1);
+
+    private final List<InstanceRecord> removed = new ArrayList<>(1);
+
+    public ServiceChange(long revision) {
+        this.revision = revision;
+    }
+
+    public void added(InstanceRecord node) {
+        added.add(node);
+    }
+
+    public void modified(InstanceRecord node) {
+        modified.add(node);
+    }
+
+    public void removed(InstanceRecord node) {
+        removed.add(node);
+    }
+
+    /**
+     * 同一批次里的多次变更按实例 key 合并成一个, 规则和客户端按顺序应用增量一致:
+     * 先删后加算修改, 先加后删相互抵消, 修改后删除只保留删除
+     */
+    public static ServiceChange merge(long revision, List<ServiceChange> changes) {
+        if (changes.size() == 1) {
+            return changes.get(0);
+        }
+        Map<String, InstanceRecord> added = new LinkedHashMap<>();
+        Map<String, InstanceRecord> modified = new LinkedHashMap<>();
+        Map<String, InstanceRecord> removed = new LinkedHashMap<>();
+        for (ServiceChange change : changes) {
+            for (InstanceRecord node : change.added) {
+                String key = node.instanceKey();
+                if (removed.remove(key) != null) {
+                    modified.put(key, node);
+                } else {
+                    added.put(key, node);
+                }
+            }
+            for (InstanceRecord node : change.modified) {
+                String key = node.instanceKey();
+                if (added.containsKey(key)) {
+                    added.put(key, node);
+                } else {
+                    modified.put(key, node);
+                }
+            }
+            for (InstanceRecord node : change.removed) {
+                String key = node.instanceKey();
+                if (added.remove(key) == null) {
+                    modified.remove(key);
+                    removed.put(key, node);
+                }
+            }
+        }
+        ServiceChange merged = new ServiceChange(revision);
+        merged.added.addAll(added.values());
+        merged.modified.addAll(modified.values());
+        merged.removed.addAll(removed.values());
+        return merged;
+    }
+
+    public boolean isEmpty() {
+        return added.isEmpty() && modified.isEmpty() && removed.isEmpty();
+    }
+
+    public long getRevision() {
+        return revision;
+    }
+
+    public List<InstanceRecord> getAdded() {
+        return added;
+    }
+
+    public List<InstanceRecord> getModified() {
+        return modified;
+    }
+
+    public List<InstanceRecord> getRemoved() {
+        return removed;
+    }
+}
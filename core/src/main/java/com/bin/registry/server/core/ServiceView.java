@@ -0,0 +1,153 @@
+package com.bin.registry.server.core;
+
+import com.bin.registry.server.core.store.InstanceRecord;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ *  服务实例的不可变快照
+ *
+ *  每次变更都会生成新的快照并递增 revision,
+ *  对外提供的实例在发布时计算好, 读路径只是一次 volatile 引用读取
+ */
+public final class ServiceView {
+
+    /**
+     * 本节点本次启动的纪元(启动毫秒数加随机低位), revision 只在同一个纪元里可比
+     * 换了节点, 或者重启后从日志恢复, revision 会重新计数, 纪元不一致的客户端只能拿全量
+     * 不超过 2^53, json 客户端按浮点数解析也能原样带回
+     */
+    public static final long EPOCH = System.currentTimeMillis() << 10 | ThreadLocalRandom.current().nextInt(1 << 10);
+
+    private final String serviceName;
+
+    /**
+     * 单调递增的版本号, 0 表示服务还没有任何变更
+     */
+    private final long revision;
+
+    private final List<InstanceRecord> nodes;
+
+    /**
+     * 对外提供的实例: 运行中且健康, 没有健康实例时退化为运行中的不健康实例
+     */
+    private final List<InstanceRecord> activeNodes;
+
+    /**
+     * 没有健康实例, activeNodes 是不健康实例
+     */
+    private final boolean degraded;
+
+    /**
+     * 运行中的实例里健康实例的占比, 没有运行中的实例时为 0
+     */
+    private final double healthyRatio;
+
+    /**
+     * 健康实例的内容摘要之和, 与顺序无关, 内容不变时摘要不变
+     */
+    private final String checksum;
+
+    /**
+     * 同一个服务的所有快照共享一份变更日志
+     */
+    private final ChangeLog changeLog;
+
+    private ServiceView(String serviceName, long revision, List<InstanceRecord> nodes, ChangeLog changeLog) {
+        this.serviceName = serviceName;
+        this.revision = revision;
+        this.changeLog = changeLog;
+        this.nodes = Collections.unmodifiableList(nodes);
+        List<InstanceRecord> healthy = new ArrayList<>(nodes.size());
+        List<InstanceRecord> unhealthy = new ArrayList<>(0);
+        for (InstanceRecord node : nodes) {
+            if (node.isActive()) {
+                if (node.isHealthy()) {
+                    healthy.add(node);
+                } else {
+                    unhealthy.add(node);
+                }
+            }
+        }
+        this.degraded = healthy.isEmpty() && !unhealthy.isEmpty();
+        int running = healthy.size() + unhealthy.size();
+        this.healthyRatio = running == 0 ? 0 : (double) healthy.size() / running;
+        this.activeNodes = Collections.unmodifiableList(degraded ? unhealthy : healthy);
+        this.checksum = checksum(activeNodes);
+    }
+
+    public static ServiceView empty(String serviceName) {
+        return new ServiceView(serviceName, 0L, new ArrayList<>(), new ChangeLog());
+    }
+
+    /**
+     *  基于当前快照生成下一个版本, nodes 由调用方新建, 之后不能再修改
+     */
+    public ServiceView next(List<InstanceRecord> nodes) {
+        return new ServiceView(serviceName, revision + 1, nodes, changeLog);
+    }
+
+    /**
+     * 从 revision 到当前快照之间的变更, 日志已经覆盖不到时返回 null
+     */
+    public List<ServiceChange> changesSince(long revision) {
+        return changeLog.between(revision, this.revision);
+    }
+
+    /**
+     * 实例是否对外提供, 和 activeNodes 的规则一致
+     */
+    public boolean serves(InstanceRecord node) {
+        return node.isActive() && (degraded || node.isHealthy());
+    }
+
+    /**
+     * 实例内容摘要之和, 与顺序无关
+     */
+    public static String checksum(List<InstanceRecord> nodes) {
+        long sum = 0L;
+        for (InstanceRecord node : nodes) {
+            sum += node.getChecksum();
+        }
+        return Long.toHexString(sum);
+    }
+
+    ChangeLog getChangeLog() {
+        return changeLog;
+    }
+
+    public String getServiceName() {
+        return serviceName;
+    }
+
+    public long getRevision() {
+        return revision;
+    }
+
+    public List<InstanceRecord> getNodes() {
+        return nodes;
+    }
+
+    public List<InstanceRecord> getActiveNodes() {
+        return activeNodes;
+    }
+
+    public boolean isDegraded() {
+        return degraded;
+    }
+
+    public double getHealthyRatio() {
+        return healthyRatio;
+    }
+
+    public String getChecksum() {
+        return checksum;
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+}
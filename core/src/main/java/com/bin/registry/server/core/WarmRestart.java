@@ -0,0 +1,105 @@
+package com.bin.registry.server.core;
+
+import com.bin.registry.server.RegistryCenter;
+import com.bin.registry.server.core.store.InstanceRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ *  热重启宽限期
+ *
+ *  从持久化恢复的实例在重启期间没法上报心跳, 重启后不能按新实例一样马上判定:
+ *      第一次检查的时间在 [unhealthyMs, unhealthyMs + jitterMs) 里随机打散, 不会同一时刻一起到期
+ *      恢复的实例里续约的比例达到 graceRatio 之前不剔除任何实例(只标记不健康),
+ *      最长 graceMaxMs, 避免客户端确实都下线时一直不剔除
+ */
+public final class WarmRestart {
+
+    private static Logger logger = LoggerFactory.getLogger(WarmRestart.class);
+
+    public static final double DEFAULT_GRACE_RATIO = 0.85;
+
+    public static final long DEFAULT_GRACE_MAX_MS = 2 * HealthPolicy.DEFAULT_EVICT_MS;
+
+    private static volatile boolean active;
+
+    /**
+     * 恢复后还没有续约的实例
+     */
+    private static final Set<InstanceRecord> pending = ConcurrentHashMap.newKeySet();
+
+    private static int recovered;
+
+    private static double graceRatio;
+
+    private static long deadline;
+
+    private WarmRestart() {
+    }
+
+    /**
+     * 恢复完成后调用, 给恢复的实例挂上打散过的心跳检查并进入宽限期
+     */
+    public static synchronized void begin(Collection<InstanceRecord> records) {
+        if (records.isEmpty()) {
+            return;
+        }
+        graceRatio = Double.parseDouble(RegistryCenter.getProperty(RegistryCenter.RESTART_GRACE_RATIO,
+                String.valueOf(DEFAULT_GRACE_RATIO)));
+        long graceMaxMs = Long.parseLong(RegistryCenter.getProperty(RegistryCenter.RESTART_GRACE_MAX_MS,
+                String.valueOf(DEFAULT_GRACE_MAX_MS)));
+        long jitterMs = Long.parseLong(RegistryCenter.getProperty(RegistryCenter.RESTART_JITTER_MS,
+                RegistryCenter.getProperty(RegistryCenter.HEALTH_UNHEALTHY_MS,
+                        String.valueOf(HealthPolicy.DEFAULT_UNHEALTHY_MS))));
+        recovered = records.size();
+        pending.addAll(records);
+        deadline = System.currentTimeMillis() + graceMaxMs;
+        active = true;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (InstanceRecord record : records) {
+            HeartbeatManager.heartbeat(record, jitterMs > 0 ? random.nextLong(jitterMs) : 0);
+        }
+        logger.info("warm restart with {} recovered instances, grace until {} renewed or {}ms",
+                recovered, graceRatio, graceMaxMs);
+    }
+
+    /**
+     * 实例续约(心跳或重新注册)
+     */
+    public static void renewed(InstanceRecord node) {
+        if (active) {
+            pending.remove(node);
+        }
+    }
+
+    /**
+     * 是否还在宽限期, 宽限期内不剔除
+     */
+    public static boolean holdEviction() {
+        if (!active) {
+            return false;
+        }
+        synchronized (WarmRestart.class) {
+            if (!active) {
+                return false;
+            }
+            int renewed = recovered - pending.size();
+            if (renewed < recovered * graceRatio && System.currentTimeMillis() < deadline) {
+                return true;
+            }
+            active = false;
+            pending.clear();
+            logger.info("warm restart grace ended, {} of {} recovered instances renewed", renewed, recovered);
+            return false;
+        }
+    }
+
+    public static boolean isActive() {
+        return active;
+    }
+}
@@ -0,0 +1,263 @@
+package com.bin.registry.server.core.cluster;
+
+import com.bin.protocol.gossip.Member;
+import com.bin.protocol.gossip.Message;
+import com.bin.registry.server.common.utils.JsonUtils;
+import com.bin.registry.server.core.NodeManager;
+import com.bin.registry.server.core.store.InstanceRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ *  反熵: 定时和随机一个节点比较实例版本的 Merkle 树, 补齐 gossip 丢掉的变更
+ *  (和 MembershipManager.doChangeMembership 定时同步成员表一样, 只是不发全量)
+ *
+ *  digest  发起方发根哈希; 收到的一方比较自己的树, 把不同节点的子节点哈希发回去, 双方交替往下比较
+ *  entries 比较到叶子时, 把不同叶子里自己的所有条目 (key, version, origin, 是否删除) 发给对方
+ *  收到条目的一方: 自己更新的直接推给对方, 对方更新的删除直接执行, 对方更新的 put 用 pull 要回来
+ *
+ *  两边一致时只交换一个根哈希; 树只包含存活的实例, 墓碑随条目一起比较, 清理墓碑的时间不同不会引起不一致
+ */
+final class AntiEntropy {
+
+    private static Logger logger = LoggerFactory.getLogger(AntiEntropy.class);
+
+    public static final long DEFAULT_INTERVAL_MS = 30 * 1000;
+
+    static final String ENTROPY = "entropy";
+
+    static final String STEP = "step";
+
+    static final String FROM = "from";
+
+    static final String DIGEST = "digest";
+
+    static final String ENTRIES = "entries";
+
+    static final String PULL = "pull";
+
+    /**
+     * 一轮比较里多次用到同一棵树, 短时间内不重建
+     */
+    private static final long TREE_TTL_MS = 1000;
+
+    private static volatile MerkleTree cached;
+
+    private static volatile long cachedAt;
+
+    private AntiEntropy() {
+    }
+
+    static void exchange() {
+        try {
+            Member peer = RegistryCluster.randomPeer();
+            if (peer == null) {
+                return;
+            }
+            Exchange digest = new Exchange();
+            digest.level = 0;
+            digest.indexes = new int[]{0};
+            digest.hashes = new long[]{tree().root()};
+            send(peer, DIGEST, digest);
+        } catch (Exception e) {
+            logger.error("anti-entropy exchange failed", e);
+        }
+    }
+
+    static void receive(Message message) {
+        Member from = RegistryCluster.member(message.header(FROM));
+        Exchange exchange = JsonUtils.fromJson((String) message.data(), Exchange.class);
+        if (from == null || exchange == null) {
+            return;
+        }
+        String step = message.header(STEP);
+        if (DIGEST.equals(step)) {
+            digest(from, exchange);
+        } else if (ENTRIES.equals(step)) {
+            entries(from, exchange);
+        } else if (PULL.equals(step)) {
+            pull(from, exchange);
+        }
+    }
+
+    private static void digest(Member from, Exchange digest) {
+        MerkleTree tree = tree();
+        List<Integer> differ = new ArrayList<>();
+        for (int i = 0; i < digest.indexes.length; i++) {
+            if (tree.hash(digest.level, digest.indexes[i]) != digest.hashes[i]) {
+                differ.add(digest.indexes[i]);
+            }
+        }
+        if (differ.isEmpty()) {
+            return;
+        }
+        if (digest.level == MerkleTree.DEPTH) {
+            Exchange entries = new Exchange();
+            entries.level = MerkleTree.DEPTH;
+            entries.indexes = differ.stream().mapToInt(Integer::intValue).toArray();
+            entries.entries = new ArrayList<>();
+            for (int leaf : differ) {
+                for (RegistryCluster.Version version : RegistryCluster.versions.leaf(leaf).values()) {
+                    entries.entries.add(entry(version));
+                }
+            }
+            send(from, ENTRIES, entries);
+            return;
+        }
+        Exchange children = new Exchange();
+        children.level = digest.level + 1;
+        children.indexes = new int[differ.size() * MerkleTree.FANOUT];
+        children.hashes = new long[children.indexes.length];
+        int n = 0;
+        for (int index : differ) {
+            for (int c = 0; c < MerkleTree.FANOUT; c++) {
+                int child = index * MerkleTree.FANOUT + c;
+                children.indexes[n] = child;
+                children.hashes[n] = tree.hash(children.level, child);
+                n++;
+            }
+        }
+        send(from, DIGEST, children);
+    }
+
+    private static void entries(Member from, Exchange entries) {
+        Set<Integer> leaves = new HashSet<>();
+        for (int leaf : entries.indexes) {
+            if (leaf >= 0 && leaf < MerkleTree.LEAVES) {
+                leaves.add(leaf);
+            }
+        }
+        Map<String, ReplicaOp> theirs = new HashMap<>();
+        for (ReplicaOp op : entries.entries) {
+            theirs.put(op.key(), op);
+        }
+        List<ReplicaOp> removes = new ArrayList<>();
+        List<ReplicaOp> pulls = new ArrayList<>();
+        for (ReplicaOp op : theirs.values()) {
+            RegistryCluster.Version known = RegistryCluster.versions.get(op.key());
+            if (known == null || RegistryCluster.newer(op.version, op.origin, known)) {
+                if (ReplicaOp.REMOVE.equals(op.type)) {
+                    removes.add(op);
+                } else {
+                    pulls.add(op);
+                }
+            }
+        }
+        List<ReplicaOp> pushes = new ArrayList<>();
+        for (int leaf : leaves) {
+            for (Map.Entry<String, RegistryCluster.Version> entry : RegistryCluster.versions.leaf(leaf).entrySet()) {
+                RegistryCluster.Version known = entry.getValue();
+                ReplicaOp their = theirs.get(entry.getKey());
+                if (their == null || newer(known, their)) {
+                    ReplicaOp op = full(known);
+                    if (op != null) {
+                        pushes.add(op);
+                    }
+                }
+            }
+        }
+        if (!removes.isEmpty()) {
+            RegistryCluster.apply(removes);
+        }
+        if (!pushes.isEmpty()) {
+            RegistryCluster.send(from, pushes);
+        }
+        if (!pulls.isEmpty()) {
+            Exchange pull = new Exchange();
+            pull.entries = pulls;
+            send(from, PULL, pull);
+        }
+        logger.info("anti-entropy with {} repaired {} leaves: pushed {}, pulled {}, removed {}",
+                from, leaves.size(), pushes.size(), pulls.size(), removes.size());
+    }
+
+    private static void pull(Member from, Exchange pull) {
+        List<ReplicaOp> ops = new ArrayList<>(pull.entries.size());
+        for (ReplicaOp op : pull.entries) {
+            RegistryCluster.Version known = RegistryCluster.versions.get(op.key());
+            ReplicaOp full = known == null ? null : full(known);
+            if (full != null) {
+                ops.add(full);
+            }
+        }
+        if (!ops.isEmpty()) {
+            RegistryCluster.send(from, ops);
+        }
+    }
+
+    /**
+     * 只含存活实例的 Merkle 树, 叶子哈希由 VersionTable 随修改维护, 这里只合并上层
+     */
+    static MerkleTree tree() {
+        long now = System.currentTimeMillis();
+        MerkleTree tree = cached;
+        if (tree != null && now - cachedAt < TREE_TTL_MS) {
+            return tree;
+        }
+        tree = RegistryCluster.versions.tree();
+        cached = tree;
+        cachedAt = now;
+        return tree;
+    }
+
+    private static boolean newer(RegistryCluster.Version known, ReplicaOp their) {
+        if (known.version != their.version) {
+            return known.version > their.version;
+        }
+        return known.origin != null && (their.origin == null || known.origin.compareTo(their.origin) > 0);
+    }
+
+    /**
+     * 只有 key 和版本的条目
+     */
+    private static ReplicaOp entry(RegistryCluster.Version version) {
+        ReplicaOp op = ReplicaOp.of(version.removed ? ReplicaOp.REMOVE : ReplicaOp.PUT,
+                version.serviceName, version.ip, version.port);
+        op.version = version.version;
+        op.origin = version.origin;
+        return op;
+    }
+
+    /**
+     * 可以直接应用的完整变更, 实例已经不在时返回 null
+     */
+    private static ReplicaOp full(RegistryCluster.Version version) {
+        if (version.removed) {
+            return entry(version);
+        }
+        InstanceRecord probe = InstanceRecord.probe(version.serviceName, version.ip, version.port);
+        InstanceRecord node = probe == null ? null : NodeManager.isRegistry(probe);
+        return node == null ? null : ReplicaOp.put(node, version.version, version.origin);
+    }
+
+    private static void send(Member member, String step, Exchange exchange) {
+        Message message = RegistryCluster.message(ENTROPY, exchange);
+        message.setHeader(STEP, step);
+        message.setHeader(FROM, RegistryCluster.localId());
+        try {
+            RegistryCluster.cluster().send(member, message);
+        } catch (IOException e) {
+            logger.warn("send anti-entropy {} to {} failed", step, member, e);
+        }
+    }
+
+
+    static final class Exchange {
+
+        int level;
+
+        int[] indexes;
+
+        long[] hashes;
+
+        List<ReplicaOp> entries;
+    }
+}
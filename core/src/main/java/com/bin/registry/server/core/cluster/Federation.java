@@ -0,0 +1,468 @@
+package com.bin.registry.server.core.cluster;
+
+import com.bin.protocol.gossip.Cluster;
+import com.bin.protocol.gossip.Member;
+import com.bin.protocol.gossip.Message;
+import com.bin.protocol.gossip.cluster.ClusterConfig;
+import com.bin.protocol.gossip.cluster.ClusterMessageHandler;
+import com.bin.protocol.gossip.cluster.membership.MembershipEvent;
+import com.bin.protocol.gossip.common.Address;
+import com.bin.registry.server.RegistryCenter;
+import com.bin.registry.server.common.utils.JsonUtils;
+import com.bin.registry.server.common.utils.StringUtils;
+import com.bin.registry.server.core.DiscoveryManager;
+import com.bin.registry.server.core.NodeFilter;
+import com.bin.registry.server.core.NodeManager;
+import com.bin.registry.server.core.RegistryPartition;
+import com.bin.registry.server.core.ServiceView;
+import com.bin.registry.server.core.store.InstanceRecord;
+import com.google.gson.reflect.TypeToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  跨机房联邦
+ *
+ *  每个机房的注册中心集群(RegistryCluster)各自独立, 另外用一个 WAN 参数的 gossip
+ *  (ClusterConfig.defaultWanConfig: 更长的探测间隔和超时, 更小的扇出) 把各机房的节点连起来:
+ *      每 summaryIntervalMs 扩散本机房各服务的健康实例数, 只是摘要, 不带实例列表
+ *      服务发现优先本机房, 本机房健康实例占比低于 spillRatio 时才合并其他机房的健康实例
+ *      其他机房的实例列表在用到时才向该机房的节点拉取, 缓存 cacheTtlMs, 过期后先用旧值再异步刷新
+ *  本机房健康时服务发现不产生任何跨机房请求
+ */
+public final class Federation {
+
+    private static Logger logger = LoggerFactory.getLogger(Federation.class);
+
+    public static final long DEFAULT_SUMMARY_INTERVAL_MS = 10 * 1000;
+
+    public static final long DEFAULT_CACHE_TTL_MS = 30 * 1000;
+
+    public static final long DEFAULT_FETCH_TIMEOUT_MS = 300;
+
+    public static final double DEFAULT_SPILL_RATIO = 0.5;
+
+    static final String HEADER = "federation";
+
+    static final String SUMMARY = "summary";
+
+    static final String FETCH = "fetch";
+
+    static final String INSTANCES = "instances";
+
+    static final String FROM = "from";
+
+    static final String DC = "dc";
+
+    static final String SERVICE = "service";
+
+    /**
+     * 连续这么多个周期没收到摘要, 认为这个机房已经不可用
+     */
+    private static final int SUMMARY_EXPIRE_INTERVALS = 3;
+
+    private static final Type OPS = new TypeToken<List<ReplicaOp>>() {}.getType();
+
+    private static volatile Cluster wan;
+
+    private static volatile String dc;
+
+    private static long summaryIntervalMs = DEFAULT_SUMMARY_INTERVAL_MS;
+
+    private static long cacheTtlMs = DEFAULT_CACHE_TTL_MS;
+
+    private static long fetchTimeoutMs = DEFAULT_FETCH_TIMEOUT_MS;
+
+    private static double spillRatio = DEFAULT_SPILL_RATIO;
+
+    /**
+     * 机房 -> 最近收到的服务摘要
+     */
+    private static final ConcurrentMap<String, Summary> summaries = new ConcurrentHashMap<>();
+
+    /**
+     * 服务名@机房 -> 缓存的实例列表
+     */
+    private static final ConcurrentMap<String, Remote> cache = new ConcurrentHashMap<>();
+
+    /**
+     * 正在拉取的 服务名@机房, 同一个只发一次请求
+     */
+    private static final ConcurrentMap<String, CompletableFuture<Void>> pending = new ConcurrentHashMap<>();
+
+    /**
+     * 服务名 -> 合并过其他机房实例的最大 revision, 持有这个 revision 及之前的客户端不能再给增量
+     */
+    private static final ConcurrentMap<String, Long> spilled = new ConcurrentHashMap<>();
+
+    private static ScheduledExecutorService scheduler;
+
+    private Federation() {
+    }
+
+    /**
+     * 没有配置 server.federation.port 时不加入联邦
+     */
+    public static synchronized void start() {
+        String port = RegistryCenter.getProperty(RegistryCenter.FEDERATION_PORT, "");
+        if (!StringUtils.isInteger(port) || wan != null) {
+            return;
+        }
+        List<Address> seeds = new ArrayList<>();
+        for (String seed : RegistryCenter.getProperty(RegistryCenter.FEDERATION_SEEDS, "").split(",")) {
+            if (!seed.trim().isEmpty()) {
+                seeds.add(Address.from(seed.trim()));
+            }
+        }
+        dc = RegistryCenter.getProperty(RegistryCenter.FEDERATION_DC,
+                RegistryCenter.getProperty("server.env", "default"));
+        summaryIntervalMs = Long.parseLong(RegistryCenter.getProperty(
+                RegistryCenter.FEDERATION_SUMMARY_INTERVAL_MS, String.valueOf(DEFAULT_SUMMARY_INTERVAL_MS)));
+        cacheTtlMs = Long.parseLong(RegistryCenter.getProperty(
+                RegistryCenter.FEDERATION_CACHE_TTL_MS, String.valueOf(DEFAULT_CACHE_TTL_MS)));
+        fetchTimeoutMs = Long.parseLong(RegistryCenter.getProperty(
+                RegistryCenter.FEDERATION_FETCH_TIMEOUT_MS, String.valueOf(DEFAULT_FETCH_TIMEOUT_MS)));
+        spillRatio = Double.parseDouble(RegistryCenter.getProperty(
+                RegistryCenter.FEDERATION_SPILL_RATIO, String.valueOf(DEFAULT_SPILL_RATIO)));
+
+        // 先于 wan 创建, 看到 wan 的线程一定能看到 scheduler
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "registry-federation");
+            thread.setDaemon(true);
+            return thread;
+        });
+        wan = new Cluster(ClusterConfig.defaultWanConfig())
+                .port(Integer.parseInt(port))
+                .handler(new FederationHandler())
+                .membership(seeds.toArray(new Address[0]))
+                .start();
+
+        scheduler.scheduleWithFixedDelay(Federation::exportSummary,
+                0, summaryIntervalMs, TimeUnit.MILLISECONDS);
+        logger.info("federation member {} of dc {} started at {}, seeds {}", wan.member().id(), dc, wan.address(), seeds);
+    }
+
+    public static boolean isEnabled() {
+        return wan != null;
+    }
+
+    /**
+     * 对外提供的实例: local 是本机房按规则选出的实例, 需要溢出时合并其他机房命中 filter 的健康实例
+     * 本机房没有健康实例(local 是不健康实例)且其他机房有时, 只返回其他机房的
+     * 不需要溢出时原样返回 local
+     *
+     * 只用已有的缓存, 缺的异步拉取, 拉到后唤醒长轮询; 想带上其他机房结果的调用方先用 prefetch
+     */
+    public static List<InstanceRecord> withRemote(ServiceView view, List<InstanceRecord> local, NodeFilter filter) {
+        if (!spills(view)) {
+            return local;
+        }
+        List<InstanceRecord> remote = remote(view.getServiceName());
+        if (remote.isEmpty()) {
+            return local;
+        }
+        List<InstanceRecord> merged = new ArrayList<>(local.size() + remote.size());
+        if (!view.isDegraded()) {
+            merged.addAll(local);
+        }
+        for (InstanceRecord node : remote) {
+            if (filter.matches(node)) {
+                merged.add(node);
+            }
+        }
+        if (merged.isEmpty()) {
+            return local;
+        }
+        spilled.merge(view.getServiceName(), view.getRevision(), Math::max);
+        return merged;
+    }
+
+    /**
+     * 需要溢出的服务里, 还没有缓存的机房一起发起拉取, 不阻塞调用线程
+     * 返回的 future 在全部拉到, 或者从现在起 fetchTimeoutMs 后完成(只有这一个截止时间), 超时的机房这次不合并
+     * 没有要拉取的时候返回已完成的 future
+     */
+    public static CompletableFuture<Void> prefetch(Collection<String> serviceNames) {
+        if (wan == null || spillRatio <= 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+        long now = System.currentTimeMillis();
+        List<CompletableFuture<Void>> fetching = new ArrayList<>(0);
+        for (String serviceName : serviceNames) {
+            ServiceView view = NodeManager.view(serviceName);
+            if (!spills(view == null ? ServiceView.empty(serviceName) : view)) {
+                continue;
+            }
+            for (Summary summary : summaries.values()) {
+                if (serves(summary, serviceName, now) && !cache.containsKey(key(serviceName, summary.dc))) {
+                    fetching.add(fetch(summary, serviceName));
+                }
+            }
+        }
+        if (fetching.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return CompletableFuture.allOf(fetching.toArray(CompletableFuture<?>[]::new))
+                .exceptionally(e -> null)
+                .completeOnTimeout(null, fetchTimeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    private static boolean spills(ServiceView view) {
+        return wan != null && spillRatio > 0 && view.getHealthyRatio() < spillRatio;
+    }
+
+    /**
+     * 客户端在 revision 时拿到的结果里可能有其他机房的实例, 增量里不会删除它们
+     */
+    public static boolean servedRemote(String serviceName, long revision) {
+        Long last = spilled.get(serviceName);
+        return last != null && revision <= last;
+    }
+
+    /**
+     * 其他机房里这个服务的健康实例
+     * 有缓存的直接用(过期的同时异步刷新), 没有缓存的发起拉取, 这次不合并
+     */
+    private static List<InstanceRecord> remote(String serviceName) {
+        long now = System.currentTimeMillis();
+        List<InstanceRecord> nodes = new ArrayList<>();
+        for (Summary summary : summaries.values()) {
+            if (!serves(summary, serviceName, now)) {
+                continue;
+            }
+            Remote cached = cache.get(key(serviceName, summary.dc));
+            if (cached == null || now - cached.time > cacheTtlMs) {
+                fetch(summary, serviceName);
+            }
+            if (cached != null) {
+                nodes.addAll(cached.nodes);
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * 摘要还没过期, 而且这个机房有这个服务的健康实例
+     */
+    private static boolean serves(Summary summary, String serviceName, long now) {
+        return now - summary.time <= SUMMARY_EXPIRE_INTERVALS * summaryIntervalMs
+                && summary.services.getOrDefault(serviceName, 0) > 0;
+    }
+
+    private static CompletableFuture<Void> fetch(Summary summary, String serviceName) {
+        String key = key(serviceName, summary.dc);
+        CompletableFuture<Void> future = pending.get(key);
+        if (future != null) {
+            return future;
+        }
+        CompletableFuture<Void> created = new CompletableFuture<>();
+        future = pending.putIfAbsent(key, created);
+        if (future != null) {
+            return future;
+        }
+        Member member = wan.member(summary.member);
+        if (member == null) {
+            pending.remove(key, created);
+            created.complete(null);
+            return created;
+        }
+        // 请求或响应丢了也不能一直占着, 下次用到时重新拉取
+        created.orTimeout(Math.max(fetchTimeoutMs, summaryIntervalMs), TimeUnit.MILLISECONDS)
+                .whenComplete((ignored, e) -> pending.remove(key, created));
+        // 调用方可能是网络线程, 发送交给联邦线程
+        scheduler.execute(() -> {
+            Message request = message(FETCH, serviceName);
+            request.setHeader(SERVICE, serviceName);
+            try {
+                wan.send(member, request);
+            } catch (IOException e) {
+                logger.warn("fetch {} from dc {} failed", serviceName, summary.dc, e);
+                created.complete(null);
+            }
+        });
+        return created;
+    }
+
+    /**
+     * 扩散本机房每个服务的健康实例数
+     */
+    private static void exportSummary() {
+        try {
+            Summary summary = new Summary();
+            summary.dc = dc;
+            summary.member = wan.member().id();
+            summary.services = new HashMap<>();
+            for (RegistryPartition partition : RegistryPartition.all()) {
+                for (ServiceView view : partition.views()) {
+                    if (!view.isDegraded() && !view.getActiveNodes().isEmpty()) {
+                        summary.services.put(view.getServiceName(), view.getActiveNodes().size());
+                    }
+                }
+            }
+            wan.spreadGossip(message(SUMMARY, summary));
+            expire();
+        } catch (Exception e) {
+            logger.error("export federation summary failed", e);
+        }
+    }
+
+    private static void expire() {
+        long expired = System.currentTimeMillis() - SUMMARY_EXPIRE_INTERVALS * summaryIntervalMs;
+        summaries.values().removeIf(summary -> summary.time < expired);
+        cache.values().removeIf(remote -> remote.time < expired - cacheTtlMs);
+    }
+
+    private static void receive(Message message) {
+        if (!(message.data() instanceof String)) {
+            return;
+        }
+        String type = message.header(HEADER);
+        if (SUMMARY.equals(type)) {
+            Summary summary = JsonUtils.fromJson((String) message.data(), Summary.class);
+            if (summary != null && summary.dc != null && !summary.dc.equals(dc) && summary.services != null) {
+                summary.time = System.currentTimeMillis();
+                summaries.put(summary.dc, summary);
+            }
+        } else if (FETCH.equals(type)) {
+            answer(message.header(FROM), message.header(SERVICE));
+        } else if (INSTANCES.equals(type)) {
+            List<ReplicaOp> ops = JsonUtils.fromJson((String) message.data(), OPS);
+            if (ops != null) {
+                cached(message.header(DC), message.header(SERVICE), ops);
+            }
+        }
+    }
+
+    /**
+     * 把本机房这个服务的健康实例发回给请求方
+     */
+    private static void answer(String from, String serviceName) {
+        Member member = from == null ? null : wan.member(from);
+        if (member == null || serviceName == null) {
+            return;
+        }
+        ServiceView view = NodeManager.view(serviceName);
+        List<ReplicaOp> ops = new ArrayList<>();
+        if (view != null && !view.isDegraded()) {
+            for (InstanceRecord node : view.getActiveNodes()) {
+                ops.add(ReplicaOp.put(node, 0, dc));
+            }
+        }
+        Message response = message(INSTANCES, ops);
+        response.setHeader(SERVICE, serviceName);
+        try {
+            wan.send(member, response);
+        } catch (IOException e) {
+            logger.warn("answer {} instances of {} to {} failed", ops.size(), serviceName, member, e);
+        }
+    }
+
+    /**
+     * 其他机房返回的实例只用于服务发现, 不进注册表, 也不挂心跳检查
+     * 内容有变化时唤醒订阅了这个服务的长轮询
+     */
+    private static void cached(String remoteDc, String serviceName, List<ReplicaOp> ops) {
+        if (remoteDc == null || serviceName == null) {
+            return;
+        }
+        List<InstanceRecord> nodes = new ArrayList<>(ops.size());
+        for (ReplicaOp op : ops) {
+            if (op.node == null || !serviceName.equals(op.node.getServiceName())) {
+                continue;
+            }
+            nodes.add(InstanceRecord.detached(op.node, op.createTime, op.onLineTime, op.healthy));
+        }
+        String key = key(serviceName, remoteDc);
+        Remote previous = cache.put(key, new Remote(nodes, System.currentTimeMillis()));
+        CompletableFuture<Void> future = pending.remove(key);
+        if (future != null) {
+            future.complete(null);
+        }
+        if (previous == null || !ServiceView.checksum(previous.nodes).equals(ServiceView.checksum(nodes))) {
+            // 唤醒时会重新计算结果, 不占用网络线程
+            scheduler.execute(() -> DiscoveryManager.serviceChanged(serviceName));
+        }
+    }
+
+    private static Message message(String type, Object data) {
+        Message message = Message.withData(JsonUtils.toJson(data)).header(HEADER, type).build();
+        message.setHeader(FROM, wan.member().id());
+        message.setHeader(DC, dc);
+        return message;
+    }
+
+    private static String key(String serviceName, String remoteDc) {
+        return serviceName + "@" + remoteDc;
+    }
+
+
+    /**
+     * 一个机房的服务摘要: 服务名 -> 健康实例数, 只包含有健康实例的服务
+     */
+    static final class Summary {
+
+        String dc;
+
+        /**
+         * 发出摘要的节点, 拉取实例列表时发给它
+         */
+        String member;
+
+        Map<String, Integer> services;
+
+        /**
+         * 本节点收到的时间
+         */
+        transient long time;
+    }
+
+
+    private static final class Remote {
+
+        final List<InstanceRecord> nodes;
+
+        final long time;
+
+        Remote(List<InstanceRecord> nodes, long time) {
+            this.nodes = nodes;
+            this.time = time;
+        }
+    }
+
+
+    private static final class FederationHandler implements ClusterMessageHandler {
+
+        @Override
+        public void onGossip(Message gossip) {
+            receive(gossip);
+        }
+
+        @Override
+        public void onMessage(Message message) {
+            receive(message);
+        }
+
+        @Override
+        public void onMembershipEvent(MembershipEvent event) {
+            // 摘要的发出节点离开后不再向它拉取, 等同机房其他节点的下一份摘要
+            if (event.isRemoved() || event.isLeaving()) {
+                String id = event.member().id();
+                summaries.values().removeIf(summary -> id.equals(summary.member));
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.bin.registry.server.core.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ *  心跳归属的一致性哈希环
+ *
+ *  集群成员按 id 各放 VIRTUAL_NODES 个虚拟节点, 实例 key 顺时针找到的第一个成员负责它的心跳检查和剔除
+ *  成员变化时只有相邻区间的实例换归属; 环本身不可变, 成员变化时整体替换
+ */
+public final class HeartbeatRing {
+
+    public static final int VIRTUAL_NODES = 128;
+
+    private final TreeMap<Long, String> ring;
+
+    private HeartbeatRing(TreeMap<Long, String> ring) {
+        this.ring = ring;
+    }
+
+    public static HeartbeatRing of(Collection<String> members) {
+        TreeMap<Long, String> ring = new TreeMap<>();
+        for (String member : members) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.put(hash(member + "#" + i), member);
+            }
+        }
+        return new HeartbeatRing(ring);
+    }
+
+    /**
+     * 负责这个实例 key 的成员 id, 环为空时返回 null
+     */
+    public String owner(String key) {
+        if (ring.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash(key));
+        return entry == null ? ring.firstEntry().getValue() : entry.getValue();
+    }
+
+    public int size() {
+        return ring.size() / VIRTUAL_NODES;
+    }
+
+    /**
+     * FNV-1a 64 位, 再做一次 murmur3 的 fmix 让虚拟节点在环上分布均匀
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
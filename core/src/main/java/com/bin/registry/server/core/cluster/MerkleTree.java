@@ -0,0 +1,71 @@
+package com.bin.registry.server.core.cluster;
+
+/**
+ *  实例版本的 Merkle 树, 用于节点之间的反熵比较
+ *
+ *  实例 key 哈希的高 12 位决定落在哪个叶子(共 FANOUT^DEPTH = 4096 个),
+ *  叶子的值是其中每个 (key, version, origin) 哈希之和, 与顺序无关;
+ *  上层节点由 FANOUT 个子节点依次混合得到, 第 0 层只有根
+ *  两边根相同时一次比较就结束, 不同时只往下比较不同的子树
+ */
+public final class MerkleTree {
+
+    public static final int FANOUT = 16;
+
+    public static final int DEPTH = 3;
+
+    public static final int LEAVES = 1 << 12;
+
+    /**
+     * levels[0] 是根, levels[DEPTH] 是叶子
+     */
+    private final long[][] levels;
+
+    private MerkleTree(long[][] levels) {
+        this.levels = levels;
+    }
+
+    /**
+     * leaves 是每个叶子里条目哈希之和
+     */
+    static MerkleTree of(long[] leaves) {
+        long[][] levels = new long[DEPTH + 1][];
+        levels[DEPTH] = leaves;
+        for (int level = DEPTH - 1; level >= 0; level--) {
+            long[] children = levels[level + 1];
+            long[] nodes = new long[children.length / FANOUT];
+            for (int i = 0; i < nodes.length; i++) {
+                long h = 17;
+                for (int c = 0; c < FANOUT; c++) {
+                    h = mix(h * 31 + children[i * FANOUT + c]);
+                }
+                nodes[i] = h;
+            }
+            levels[level] = nodes;
+        }
+        return new MerkleTree(levels);
+    }
+
+    static int leaf(String key) {
+        return (int) (HeartbeatRing.hash(key) >>> 52);
+    }
+
+    static long entry(String key, long version, String origin) {
+        return HeartbeatRing.hash(key + "@" + version + "@" + origin);
+    }
+
+    public long hash(int level, int index) {
+        return levels[level][index];
+    }
+
+    public long root() {
+        return levels[0][0];
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,518 @@
+package com.bin.registry.server.core.cluster;
+
+import com.bin.protocol.gossip.Cluster;
+import com.bin.protocol.gossip.Member;
+import com.bin.protocol.gossip.Message;
+import com.bin.protocol.gossip.cluster.ClusterMessageHandler;
+import com.bin.protocol.gossip.cluster.membership.MembershipEvent;
+import com.bin.protocol.gossip.common.Address;
+import com.bin.registry.server.RegistryCenter;
+import com.bin.registry.server.common.utils.JsonUtils;
+import com.bin.registry.server.common.utils.StringUtils;
+import com.bin.registry.server.core.HeartbeatManager;
+import com.bin.registry.server.core.NodeManager;
+import com.bin.registry.server.core.RegistryPartition;
+import com.bin.registry.server.core.ServiceChange;
+import com.bin.registry.server.core.store.InstanceRecord;
+import com.bin.registry.server.model.Node;
+import com.google.gson.reflect.TypeToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  注册中心集群
+ *
+ *  节点之间用 protocol 模块的 gossip(Cluster) 组成集群, 每个节点都接受写入, 也都能提供服务发现
+ *      写线程发布的注册, 修改, 健康变化, 下线和剔除作为带版本的 put / remove 扩散给其他节点
+ *      新节点加入时把本节点的全部实例直接发给它
+ *  收到的变更交给服务所在分区的写线程, 按 (version, origin) 取最新, 重复和乱序都是幂等的
+ *
+ *  每个实例的心跳检查只由一致性哈希环(HeartbeatRing)上的归属节点执行, 健康判定和剔除也只由它做出再复制出去;
+ *  落到其他节点的心跳按实例合并, 每 heartbeatIntervalMs 批量转发给归属节点
+ *  成员变化时重建环, 新归属的实例挂上检查任务, 不再归属的任务下次到期时自己退出
+ *
+ *  gossip 丢掉的变更由 AntiEntropy 定时和随机一个节点比较 Merkle 树补齐
+ */
+public final class RegistryCluster {
+
+    private static Logger logger = LoggerFactory.getLogger(RegistryCluster.class);
+
+    public static final long DEFAULT_HEARTBEAT_INTERVAL_MS = 1000;
+
+    /**
+     * 删除的墓碑保留多久, 之后再到达的旧 put 会被当作新实例
+     */
+    public static final long TOMBSTONE_TTL_MS = 10 * 60 * 1000;
+
+    static final String HEADER = "registry";
+
+    static final String REPLICA = "replica";
+
+    /**
+     * 全量同步时每条消息的实例数
+     */
+    private static final int SYNC_BATCH = 256;
+
+    private static final Type OPS = new TypeToken<List<ReplicaOp>>() {}.getType();
+
+    private static volatile Cluster cluster;
+
+    private static volatile String localId;
+
+    private static volatile HeartbeatRing ring;
+
+    /**
+     * 实例 key -> 当前版本, 只由实例所在分区的写线程修改
+     */
+    static final VersionTable versions = new VersionTable();
+
+    /**
+     * 等待扩散的心跳, 同一个实例只留一条
+     */
+    private static final ConcurrentMap<String, InstanceRecord> heartbeats = new ConcurrentHashMap<>();
+
+    private static ScheduledExecutorService scheduler;
+
+    private RegistryCluster() {
+    }
+
+    /**
+     * 没有配置 server.cluster.port 时单机运行
+     */
+    public static synchronized void start() {
+        String port = RegistryCenter.getProperty(RegistryCenter.CLUSTER_PORT, "");
+        if (!StringUtils.isInteger(port) || cluster != null) {
+            return;
+        }
+        List<Address> seeds = new ArrayList<>();
+        for (String seed : RegistryCenter.getProperty(RegistryCenter.CLUSTER_SEEDS, "").split(",")) {
+            if (!seed.trim().isEmpty()) {
+                seeds.add(Address.from(seed.trim()));
+            }
+        }
+        Cluster started = new Cluster()
+                .port(Integer.parseInt(port))
+                .handler(new ReplicaHandler())
+                .membership(seeds.toArray(new Address[0]))
+                .start();
+        localId = started.member().id();
+        ring = HeartbeatRing.of(List.of(localId));
+        // 启动前(例如从持久化)恢复的实例还没有版本, 记为 0, 任何一次真实的修改都比它新
+        long now = System.currentTimeMillis();
+        for (InstanceRecord node : NodeManager.fetchAllNode()) {
+            versions.putIfAbsent(key(node), new Version(0, localId, content(node), false, now,
+                    node.getServiceName(), node.getIp(), node.getPort()));
+        }
+        cluster = started;
+
+        long heartbeatIntervalMs = Long.parseLong(RegistryCenter.getProperty(
+                RegistryCenter.CLUSTER_HEARTBEAT_INTERVAL_MS, String.valueOf(DEFAULT_HEARTBEAT_INTERVAL_MS)));
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "registry-cluster");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(RegistryCluster::forwardHeartbeats,
+                heartbeatIntervalMs, heartbeatIntervalMs, TimeUnit.MILLISECONDS);
+        long antiEntropyIntervalMs = Long.parseLong(RegistryCenter.getProperty(
+                RegistryCenter.CLUSTER_ANTI_ENTROPY_INTERVAL_MS, String.valueOf(AntiEntropy.DEFAULT_INTERVAL_MS)));
+        scheduler.scheduleWithFixedDelay(AntiEntropy::exchange,
+                antiEntropyIntervalMs, antiEntropyIntervalMs, TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(RegistryCluster::expireTombstones,
+                TOMBSTONE_TTL_MS, TOMBSTONE_TTL_MS, TimeUnit.MILLISECONDS);
+        logger.info("registry cluster member {} started at {}, seeds {}", localId, started.address(), seeds);
+    }
+
+    public static boolean isEnabled() {
+        return cluster != null;
+    }
+
+    /**
+     * 本节点是否负责这个实例的心跳检查, 单机时总是负责
+     */
+    public static boolean owns(InstanceRecord node) {
+        HeartbeatRing current = ring;
+        if (current == null) {
+            return true;
+        }
+        String owner = current.owner(key(node));
+        return owner == null || owner.equals(localId);
+    }
+
+    /**
+     * 写线程发布一批变更后调用; 和已知版本内容相同的(包括刚从其他节点复制来的)不再扩散
+     */
+    public static void published(List<ServiceChange> changes) {
+        if (cluster == null || changes.isEmpty()) {
+            return;
+        }
+        List<ReplicaOp> ops = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (ServiceChange change : changes) {
+            for (InstanceRecord node : change.getAdded()) {
+                put(node, now, ops);
+            }
+            for (InstanceRecord node : change.getModified()) {
+                put(node, now, ops);
+            }
+            for (InstanceRecord node : change.getRemoved()) {
+                String key = key(node);
+                Version known = versions.get(key);
+                if (known != null && known.removed) {
+                    continue;
+                }
+                Version next = new Version(next(known, now), localId, 0, true, now,
+                        node.getServiceName(), node.getIp(), node.getPort());
+                versions.put(key, next);
+                ops.add(ReplicaOp.remove(node, next.version, next.origin));
+            }
+        }
+        spread(ops);
+    }
+
+    private static void put(InstanceRecord node, long now, List<ReplicaOp> ops) {
+        String key = key(node);
+        int content = content(node);
+        Version known = versions.get(key);
+        // 内容和健康状态都没变, 例如刚从其他节点复制过来
+        if (known != null && !known.removed && known.content == content) {
+            return;
+        }
+        Version next = new Version(next(known, now), localId, content, false, now,
+                node.getServiceName(), node.getIp(), node.getPort());
+        versions.put(key, next);
+        ops.add(ReplicaOp.put(node, next.version, next.origin));
+    }
+
+    /**
+     * 本节点收到的心跳, 不归本节点检查的等着转发给归属节点
+     */
+    public static void heartbeat(InstanceRecord node) {
+        if (cluster != null && !owns(node)) {
+            heartbeats.put(key(node), node);
+        }
+    }
+
+    /**
+     * 按当前的环分给各个归属节点, 每个节点一条消息
+     */
+    private static void forwardHeartbeats() {
+        if (heartbeats.isEmpty()) {
+            return;
+        }
+        HeartbeatRing current = ring;
+        Map<String, List<ReplicaOp>> byOwner = new HashMap<>();
+        Iterator<Map.Entry<String, InstanceRecord>> it = heartbeats.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, InstanceRecord> entry = it.next();
+            it.remove();
+            String owner = current.owner(entry.getKey());
+            if (owner != null && !owner.equals(localId)) {
+                byOwner.computeIfAbsent(owner, k -> new ArrayList<>()).add(ReplicaOp.heartbeat(entry.getValue()));
+            }
+        }
+        byOwner.forEach((owner, ops) -> {
+            Member member = cluster.member(owner);
+            if (member != null) {
+                send(member, ops);
+            }
+        });
+    }
+
+    /**
+     * 成员变化后重建环, 接管新归属的实例
+     * 接管前没有收到过它们的心跳, 从现在开始算一个完整的检查周期
+     */
+    static synchronized void rebalance() {
+        Set<String> members = new HashSet<>();
+        members.add(localId);
+        for (Member member : cluster.members()) {
+            members.add(member.id());
+        }
+        HeartbeatRing previous = ring;
+        HeartbeatRing next = HeartbeatRing.of(members);
+        ring = next;
+        int adopted = 0;
+        for (InstanceRecord node : NodeManager.fetchAllNode()) {
+            if (owns(node) && HeartbeatManager.adopt(node)) {
+                adopted++;
+            }
+        }
+        logger.info("heartbeat ring rebuilt from {} to {} members, adopted {} instances",
+                previous == null ? 0 : previous.size(), next.size(), adopted);
+    }
+
+    private static void spread(List<ReplicaOp> ops) {
+        if (ops.isEmpty()) {
+            return;
+        }
+        try {
+            cluster.spreadGossip(message(ops));
+        } catch (Exception e) {
+            logger.error("spread {} registry changes failed", ops.size(), e);
+        }
+    }
+
+    /**
+     * 新节点加入, 把本节点的实例全量发给它
+     */
+    static void sync(Member member) {
+        List<InstanceRecord> nodes = NodeManager.fetchAllNode();
+        List<ReplicaOp> ops = new ArrayList<>(SYNC_BATCH);
+        for (InstanceRecord node : nodes) {
+            Version known = versions.get(key(node));
+            ops.add(known == null || known.removed
+                    ? ReplicaOp.put(node, 0, localId) : ReplicaOp.put(node, known.version, known.origin));
+            if (ops.size() == SYNC_BATCH) {
+                send(member, ops);
+                ops = new ArrayList<>(SYNC_BATCH);
+            }
+        }
+        if (!ops.isEmpty()) {
+            send(member, ops);
+        }
+        logger.info("synced {} instances to new member {}", nodes.size(), member);
+    }
+
+    static void send(Member member, List<ReplicaOp> ops) {
+        try {
+            cluster.send(member, message(ops));
+        } catch (IOException e) {
+            logger.error("send {} registry changes to {} failed", ops.size(), member, e);
+        }
+    }
+
+    private static Message message(List<ReplicaOp> ops) {
+        return message(REPLICA, ops);
+    }
+
+    /**
+     * 其他节点来的变更, 按服务所在分区交给写线程
+     */
+    static void receive(Message message) {
+        if (!(message.data() instanceof String)) {
+            return;
+        }
+        if (AntiEntropy.ENTROPY.equals(message.header(HEADER))) {
+            AntiEntropy.receive(message);
+            return;
+        }
+        if (!REPLICA.equals(message.header(HEADER))) {
+            return;
+        }
+        List<ReplicaOp> ops = JsonUtils.fromJson((String) message.data(), OPS);
+        if (ops != null) {
+            apply(ops);
+        }
+    }
+
+    static void apply(List<ReplicaOp> ops) {
+        long now = System.currentTimeMillis();
+        List<ReplicaOp> changes = new ArrayList<>(ops.size());
+        for (ReplicaOp op : ops) {
+            if (ReplicaOp.HEARTBEAT.equals(op.type)) {
+                InstanceRecord probe = InstanceRecord.probe(op.serviceName, op.ip, op.port);
+                InstanceRecord node = probe == null ? null : NodeManager.isRegistry(probe);
+                if (node != null) {
+                    // 转发过来的是客户端的真实心跳, 按收到心跳的节点记录的时间计入间隔
+                    long heartbeatTime = op.heartbeatTime > 0 ? op.heartbeatTime : now;
+                    if (heartbeatTime > node.getHeartbeatTime()) {
+                        node.renewHeartbeat(heartbeatTime);
+                        HeartbeatManager.againHeartbeat(node);
+                    } else {
+                        HeartbeatManager.heartbeat(node);
+                    }
+                }
+            } else {
+                changes.add(op);
+            }
+        }
+        RegistryPartition.group(changes, op -> op.serviceName).forEach((partition, partitionOps) ->
+                partition.submit(() -> {
+                    for (ReplicaOp op : partitionOps) {
+                        apply(op, now);
+                    }
+                }));
+    }
+
+    /**
+     * 在写线程里执行
+     */
+    private static void apply(ReplicaOp op, long now) {
+        String key = op.key();
+        Version known = versions.get(key);
+        if (known != null && !newer(op.version, op.origin, known)) {
+            return;
+        }
+        InstanceRecord probe = InstanceRecord.probe(op.serviceName, op.ip, op.port);
+        InstanceRecord existing = probe == null ? null : NodeManager.isRegistry(probe);
+        if (ReplicaOp.REMOVE.equals(op.type)) {
+            versions.put(key, new Version(op.version, op.origin, 0, true, now, op.serviceName, op.ip, op.port));
+            if (existing != null) {
+                NodeManager.cancelNode(existing);
+            }
+            return;
+        }
+        if (op.node == null) {
+            return;
+        }
+        versions.put(key, new Version(op.version, op.origin, content(op.node, op.healthy), false, now,
+                op.serviceName, op.ip, op.port));
+        if (existing != null) {
+            // 复制不是心跳, 只合并两边较新的心跳时间, 不产生间隔样本
+            existing.advanceHeartbeatTime(op.heartbeatTime);
+            if (!existing.sameContent(op.node)) {
+                existing.update(op.node);
+                existing.setOnLineTime(op.onLineTime);
+                existing.setRegistration(op.registration);
+                NodeManager.agentRegistryNode(existing);
+            }
+            if (existing.pending().isHealthy() != op.healthy) {
+                NodeManager.changeHealth(existing, op.healthy);
+            }
+            HeartbeatManager.heartbeat(existing);
+        } else {
+            InstanceRecord record = InstanceRecord.of(op.node);
+            record.setCreateTime(op.createTime);
+            record.setOnLineTime(op.onLineTime);
+            record.setHeartbeatTime(op.heartbeatTime > 0 ? op.heartbeatTime : now);
+            record.setRegistration(op.registration);
+            record.setHealthy(op.healthy);
+            NodeManager.registryNodes(List.of(record), Map.of());
+            HeartbeatManager.heartbeat(record);
+        }
+    }
+
+    private static void expireTombstones() {
+        long expired = System.currentTimeMillis() - TOMBSTONE_TTL_MS;
+        for (Map<String, Version> bucket : versions.buckets()) {
+            for (Map.Entry<String, Version> entry : bucket.entrySet()) {
+                Version version = entry.getValue();
+                if (version.removed && version.time < expired) {
+                    versions.remove(entry.getKey(), version);
+                }
+            }
+        }
+    }
+
+    private static long next(Version known, long now) {
+        return known == null ? now : Math.max(now, known.version + 1);
+    }
+
+    static boolean newer(long version, String origin, Version known) {
+        if (version != known.version) {
+            return version > known.version;
+        }
+        return origin != null && origin.compareTo(known.origin) > 0;
+    }
+
+    private static String key(InstanceRecord node) {
+        return node.getServiceName() + "/" + node.instanceKey();
+    }
+
+    /**
+     * 复制的内容(实例字段和健康状态, 不含时间)
+     */
+    private static int content(InstanceRecord node) {
+        return content(node.toNode(), node.isHealthy());
+    }
+
+    private static int content(Node node, boolean healthy) {
+        return JsonUtils.toJson(node).hashCode() * 31 + (healthy ? 1 : 0);
+    }
+
+
+    static Member member(String id) {
+        return cluster.member(id);
+    }
+
+    static Member randomPeer() {
+        List<Member> others = new ArrayList<>(cluster.otherMembers());
+        return others.isEmpty() ? null : others.get(ThreadLocalRandom.current().nextInt(others.size()));
+    }
+
+    static String localId() {
+        return localId;
+    }
+
+    static Cluster cluster() {
+        return cluster;
+    }
+
+    static Message message(String header, Object data) {
+        return Message.withData(JsonUtils.toJson(data)).header(HEADER, header).build();
+    }
+
+
+    static final class Version {
+
+        final long version;
+
+        final String origin;
+
+        final int content;
+
+        final boolean removed;
+
+        /**
+         * 本节点记录这个版本的时间, 用于清理墓碑
+         */
+        final long time;
+
+        final String serviceName;
+
+        final String ip;
+
+        final Integer port;
+
+        Version(long version, String origin, int content, boolean removed, long time,
+                String serviceName, String ip, Integer port) {
+            this.version = version;
+            this.origin = origin;
+            this.content = content;
+            this.removed = removed;
+            this.time = time;
+            this.serviceName = serviceName;
+            this.ip = ip;
+            this.port = port;
+        }
+    }
+
+
+    private static final class ReplicaHandler implements ClusterMessageHandler {
+
+        @Override
+        public void onGossip(Message gossip) {
+            receive(gossip);
+        }
+
+        @Override
+        public void onMessage(Message message) {
+            receive(message);
+        }
+
+        @Override
+        public void onMembershipEvent(MembershipEvent event) {
+            rebalance();
+            if (event.isAdded()) {
+                sync(event.member());
+            }
+        }
+    }
+}
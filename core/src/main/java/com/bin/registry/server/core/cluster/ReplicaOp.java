@@ -0,0 +1,93 @@
+package com.bin.registry.server.core.cluster;
+
+import com.bin.registry.server.core.store.InstanceRecord;
+import com.bin.registry.server.model.Node;
+
+/**
+ *  节点之间复制的一条实例变更, 以 json 数组放在 gossip Message 的 data 里
+ *
+ *  put / remove 带版本(version, origin), 同一个实例按版本取最新, 乱序或重复到达都没关系
+ *  heartbeat 只带实例 key 和心跳时间, 不带版本, 只发给负责检查这个实例的节点
+ *  心跳时间是收到心跳的节点记录的时间, 接收方取两边较新的一个, 不用自己的当前时间
+ */
+public class ReplicaOp {
+
+    public static final String PUT = "put";
+
+    public static final String REMOVE = "remove";
+
+    public static final String HEARTBEAT = "heartbeat";
+
+    String type;
+
+    long version;
+
+    /**
+     * 产生这个版本的节点 id, 版本相同时按 origin 比较
+     */
+    String origin;
+
+    String serviceName;
+
+    String ip;
+
+    Integer port;
+
+    Node node;
+
+    boolean healthy = true;
+
+    long registration;
+
+    long createTime;
+
+    long onLineTime;
+
+    /**
+     * 发送方记录的最近一次心跳时间, 0 表示没有(老版本节点)
+     */
+    long heartbeatTime;
+
+    static ReplicaOp put(InstanceRecord record, long version, String origin) {
+        ReplicaOp op = of(PUT, record);
+        op.version = version;
+        op.origin = origin;
+        op.node = record.toNode();
+        op.healthy = record.isHealthy();
+        op.registration = record.getRegistration();
+        op.createTime = record.getCreateTime();
+        op.onLineTime = record.getOnLineTime();
+        op.heartbeatTime = record.getHeartbeatTime();
+        return op;
+    }
+
+    static ReplicaOp remove(InstanceRecord record, long version, String origin) {
+        ReplicaOp op = of(REMOVE, record);
+        op.version = version;
+        op.origin = origin;
+        return op;
+    }
+
+    static ReplicaOp heartbeat(InstanceRecord record) {
+        ReplicaOp op = of(HEARTBEAT, record);
+        op.heartbeatTime = record.getHeartbeatTime();
+        return op;
+    }
+
+    private static ReplicaOp of(String type, InstanceRecord record) {
+        return of(type, record.getServiceName(), record.getIp(), record.getPort());
+    }
+
+    static ReplicaOp of(String type, String serviceName, String ip, Integer port) {
+        ReplicaOp op = new ReplicaOp();
+        op.type = type;
+        op.serviceName = serviceName;
+        op.ip = ip;
+        op.port = port;
+        return op;
+    }
+
+    String key() {
+        return serviceName + "/" + ip + ":" + port;
+    }
+}
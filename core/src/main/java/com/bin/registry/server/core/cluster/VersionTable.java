@@ -0,0 +1,82 @@
+package com.bin.registry.server.core.cluster;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ *  实例 key -> 当前版本, 按 Merkle 树的叶子分桶存放
+ *
+ *  每次修改同时增减所在叶子的哈希(存活条目的 (key, version, origin) 哈希之和),
+ *  反熵比较叶子时只看不同的桶, 建树时直接拿叶子哈希, 都不用遍历全部版本
+ *  put 拿到被替换的旧版本再算差值, 并发修改同一个 key 时每个旧版本只被减一次, 和顺序无关
+ */
+final class VersionTable {
+
+    private final List<ConcurrentMap<String, RegistryCluster.Version>> buckets;
+
+    private final AtomicLongArray leafHashes = new AtomicLongArray(MerkleTree.LEAVES);
+
+    VersionTable() {
+        buckets = new ArrayList<>(MerkleTree.LEAVES);
+        for (int i = 0; i < MerkleTree.LEAVES; i++) {
+            buckets.add(new ConcurrentHashMap<>());
+        }
+    }
+
+    RegistryCluster.Version get(String key) {
+        return buckets.get(MerkleTree.leaf(key)).get(key);
+    }
+
+    void put(String key, RegistryCluster.Version version) {
+        int leaf = MerkleTree.leaf(key);
+        RegistryCluster.Version previous = buckets.get(leaf).put(key, version);
+        leafHashes.addAndGet(leaf, hash(key, version) - hash(key, previous));
+    }
+
+    void putIfAbsent(String key, RegistryCluster.Version version) {
+        int leaf = MerkleTree.leaf(key);
+        if (buckets.get(leaf).putIfAbsent(key, version) == null) {
+            leafHashes.addAndGet(leaf, hash(key, version));
+        }
+    }
+
+    void remove(String key, RegistryCluster.Version version) {
+        int leaf = MerkleTree.leaf(key);
+        if (buckets.get(leaf).remove(key, version)) {
+            leafHashes.addAndGet(leaf, -hash(key, version));
+        }
+    }
+
+    /**
+     * 一个叶子里的全部版本, 包括墓碑
+     */
+    Map<String, RegistryCluster.Version> leaf(int leaf) {
+        return buckets.get(leaf);
+    }
+
+    List<ConcurrentMap<String, RegistryCluster.Version>> buckets() {
+        return buckets;
+    }
+
+    /**
+     * 只含存活实例的 Merkle 树
+     */
+    MerkleTree tree() {
+        long[] leaves = new long[MerkleTree.LEAVES];
+        for (int i = 0; i < leaves.length; i++) {
+            leaves[i] = leafHashes.get(i);
+        }
+        return MerkleTree.of(leaves);
+    }
+
+    private static long hash(String key, RegistryCluster.Version version) {
+        if (version == null || version.removed) {
+            return 0L;
+        }
+        return MerkleTree.entry(key, version.version, version.origin);
+    }
+}
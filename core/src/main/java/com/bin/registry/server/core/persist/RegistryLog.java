@@ -0,0 +1,272 @@
+package com.bin.registry.server.core.persist;
+
+import com.bin.protocol.utils.Utils;
+import com.bin.registry.server.common.utils.JsonUtils;
+import com.bin.registry.server.core.ServiceChange;
+import com.bin.registry.server.core.store.InstanceRecord;
+import com.bin.registry.server.model.Node;
+import com.google.gson.JsonParseException;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ *  一个注册表分区的预写日志
+ *
+ *  日志按段存放, 文件名是段号; 每批发布的变更编码后一次写入当前段
+ *  记录格式: [int 长度][int crc][byte 类型][long 注册摘要][long 创建时间][long 上线时间][实例 json]
+ *  长度和 crc 覆盖类型之后的内容, 重放时遇到不完整或校验失败的记录就停止(进程崩溃时最后一批只写了一半)
+ *
+ *  只由分区的写线程追加和切段
+ */
+public final class RegistryLog {
+
+    private static Logger logger = LoggerFactory.getLogger(RegistryLog.class);
+
+    static final byte PUT = 1;
+
+    static final byte REMOVE = 2;
+
+    static final String SUFFIX = ".log";
+
+    /**
+     * 长度 + crc
+     */
+    static final int HEADER = 8;
+
+    private final Path dir;
+
+    private final boolean fsync;
+
+    private FileChannel channel;
+
+    private long segment;
+
+    RegistryLog(Path dir, boolean fsync) {
+        this.dir = dir;
+        this.fsync = fsync;
+    }
+
+    /**
+     * 打开一个新的段用于追加
+     */
+    void open(long segment) throws IOException {
+        Files.createDirectories(dir);
+        this.channel = FileChannel.open(path(dir, segment),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.segment = segment;
+    }
+
+    /**
+     * 关闭当前段, 之后的变更写到下一个段, 返回新段号
+     */
+    long roll() throws IOException {
+        FileChannel current = channel;
+        open(segment + 1);
+        if (current != null) {
+            current.force(false);
+            current.close();
+        }
+        return segment;
+    }
+
+    void append(List<ServiceChange> changes) {
+        if (channel == null || changes.isEmpty()) {
+            return;
+        }
+        ByteBuf out = Unpooled.buffer();
+        try {
+            for (ServiceChange change : changes) {
+                for (InstanceRecord node : change.getAdded()) {
+                    encode(out, PUT, node);
+                }
+                for (InstanceRecord node : change.getModified()) {
+                    encode(out, PUT, node);
+                }
+                for (InstanceRecord node : change.getRemoved()) {
+                    encode(out, REMOVE, node);
+                }
+            }
+            Utils.writeFully(channel, out.nioBuffer());
+            if (fsync) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            logger.error("append registry log segment {} of {} failed", segment, dir, e);
+        } finally {
+            out.release();
+        }
+    }
+
+    /**
+     * 删除 segment 之前的段, 它们的内容已经在快照里
+     */
+    void deleteBefore(long segment) {
+        for (long old : segments(dir)) {
+            if (old < segment) {
+                try {
+                    Files.deleteIfExists(path(dir, old));
+                } catch (IOException e) {
+                    logger.warn("delete registry log segment {} of {} failed", old, dir, e);
+                }
+            }
+        }
+    }
+
+    void close() throws IOException {
+        if (channel != null) {
+            channel.force(false);
+            channel.close();
+            channel = null;
+        }
+    }
+
+    long getSegment() {
+        return segment;
+    }
+
+
+    static void encode(ByteBuf out, byte type, InstanceRecord node) {
+        int start = out.writerIndex();
+        out.writeInt(0);
+        out.writeInt(0);
+        int body = out.writerIndex();
+        out.writeByte(type);
+        out.writeLong(node.getRegistration());
+        out.writeLong(node.getCreateTime());
+        out.writeLong(node.getOnLineTime());
+        node.writeJson(out);
+        int length = out.writerIndex() - body;
+        CRC32 crc = new CRC32();
+        crc.update(out.nioBuffer(body, length));
+        out.setInt(start, length);
+        out.setInt(start + 4, (int) crc.getValue());
+    }
+
+    /**
+     * 从 buffer 当前位置开始解码, 按实例 key 合并到 entries(后写的覆盖先写的, 删除直接移除)
+     * 返回最后一条完整记录的结束位置
+     */
+    static int decode(ByteBuffer in, Map<String, Entry> entries) {
+        int valid = in.position();
+        while (in.remaining() >= HEADER) {
+            int length = in.getInt();
+            int checksum = in.getInt();
+            if (length <= 0 || length > in.remaining()) {
+                break;
+            }
+            ByteBuffer body = in.slice();
+            body.limit(length);
+            CRC32 crc = new CRC32();
+            crc.update(body.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            byte type = body.get();
+            long registration = body.getLong();
+            long createTime = body.getLong();
+            long onLineTime = body.getLong();
+            Node node = null;
+            try {
+                node = JsonUtils.readNode(Unpooled.wrappedBuffer(body));
+            } catch (JsonParseException e) {
+                // 快照在后台线程编码, 可能读到写线程正在刷新的 json, 这次修改也会出现在之后的日志段里
+                logger.warn("skip unreadable instance record", e);
+            }
+            if (node != null) {
+                String key = node.getServiceName() + "/" + node.getIp() + ":" + node.getPort();
+                if (type == PUT) {
+                    entries.put(key, new Entry(node, registration, createTime, onLineTime));
+                } else {
+                    entries.remove(key);
+                }
+            }
+            in.position(in.position() + length);
+            valid = in.position();
+        }
+        return valid;
+    }
+
+    /**
+     * 重放一个段, 末尾不完整的记录截掉
+     */
+    static void replay(Path file, Map<String, Entry> entries) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            if (size == 0) {
+                return;
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int valid = decode(mapped, entries);
+            if (valid < size) {
+                logger.warn("registry log {} is truncated at {} of {} bytes", file, valid, size);
+                channel.truncate(valid);
+            }
+        }
+    }
+
+    /**
+     * 目录里的段号, 从小到大
+     */
+    static List<Long> segments(Path dir) {
+        List<Long> segments = new ArrayList<>();
+        if (!Files.isDirectory(dir)) {
+            return segments;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    segments.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    logger.warn("ignore unknown file {}", file);
+                }
+            }
+        } catch (IOException e) {
+            logger.error("list registry log segments of {} failed", dir, e);
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    static Path path(Path dir, long segment) {
+        return dir.resolve(String.format("%020d", segment) + SUFFIX);
+    }
+
+
+    /**
+     * 日志或快照里的一个实例
+     */
+    static final class Entry {
+
+        final Node node;
+
+        final long registration;
+
+        final long createTime;
+
+        final long onLineTime;
+
+        Entry(Node node, long registration, long createTime, long onLineTime) {
+            this.node = node;
+            this.registration = registration;
+            this.createTime = createTime;
+            this.onLineTime = onLineTime;
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package com.bin.registry.server.core.persist;
+
+import com.bin.protocol.utils.Utils;
+import com.bin.registry.server.RegistryCenter;
+import com.bin.registry.server.core.NodeManager;
+import com.bin.registry.server.core.RegistryPartition;
+import com.bin.registry.server.core.RegistryWriter;
+import com.bin.registry.server.core.ServiceChange;
+import com.bin.registry.server.core.ServiceView;
+import com.bin.registry.server.core.WarmRestart;
+import com.bin.registry.server.core.store.InstanceRecord;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  注册表持久化, 重启时不用等所有客户端重新注册
+ *
+ *  每个分区一个目录: 一份快照 + 快照之后的日志段
+ *      写线程每批发布后把变更追加到日志(RegistryLog)
+ *      定时在写线程里切段并拿到当时的快照列表, 再在后台线程把快照经 mmap 写到临时文件, 原子替换后删除旧段
+ *  恢复时读快照, 再按顺序重放之后的日志段
+ *
+ *  健康状态和心跳间隔不持久化: 恢复出来的实例按刚收到心跳处理, 并进入热重启宽限期(见 WarmRestart)
+ */
+public final class RegistryPersistence {
+
+    private static Logger logger = LoggerFactory.getLogger(RegistryPersistence.class);
+
+    public static final long DEFAULT_SNAPSHOT_INTERVAL_MS = 60000;
+
+    static final String SNAPSHOT = "snapshot";
+
+    static final String PARTITION_PREFIX = "partition-";
+
+    private static final int MAGIC = 0x52454731;
+
+    private static final int VERSION = 1;
+
+    /**
+     * magic + version + 段号 + 实例数
+     */
+    private static final int SNAPSHOT_HEADER = 4 + 4 + 8 + 4;
+
+    /**
+     * 按分区 id, 打开之前不记录日志
+     */
+    private static volatile RegistryLog[] logs;
+
+    private static ScheduledExecutorService scheduler;
+
+    private RegistryPersistence() {
+    }
+
+    /**
+     * 写线程发布一批变更后调用
+     */
+    public static void append(int partitionId, List<ServiceChange> changes) {
+        RegistryLog[] current = logs;
+        if (current != null) {
+            current[partitionId].append(changes);
+        }
+    }
+
+    /**
+     * 启动时调用, 在开放 http 服务之前恢复注册表, 然后开始记录日志
+     * 没有配置 server.persist.dir 时不做持久化
+     */
+    public static synchronized void recover() throws IOException {
+        String configured = RegistryCenter.getProperty(RegistryCenter.PERSIST_DIR, "");
+        if (configured.isEmpty() || logs != null) {
+            return;
+        }
+        Path dir = Paths.get(configured);
+        Files.createDirectories(dir);
+
+        Map<String, RegistryLog.Entry> entries = new LinkedHashMap<>();
+        List<Path> partitionDirs = partitionDirs(dir);
+        for (Path partitionDir : partitionDirs) {
+            load(partitionDir, entries);
+        }
+        long now = System.currentTimeMillis();
+        List<InstanceRecord> records = new ArrayList<>(entries.size());
+        for (RegistryLog.Entry entry : entries.values()) {
+            InstanceRecord record = InstanceRecord.of(entry.node);
+            record.setCreateTime(entry.createTime);
+            record.setOnLineTime(entry.onLineTime);
+            record.setRegistration(entry.registration);
+            record.setHeartbeatTime(now);
+            records.add(record);
+        }
+        if (!records.isEmpty()) {
+            RegistryWriter.await(NodeManager.registryNodes(records, Map.of()));
+            WarmRestart.begin(records);
+        }
+        logger.info("recovered {} instances from {}", records.size(), dir);
+
+        boolean fsync = Boolean.parseBoolean(RegistryCenter.getProperty(RegistryCenter.PERSIST_FSYNC, "false"));
+        RegistryLog[] opened = new RegistryLog[RegistryPartition.count()];
+        for (int i = 0; i < opened.length; i++) {
+            Path partitionDir = dir.resolve(PARTITION_PREFIX + i);
+            List<Long> segments = RegistryLog.segments(partitionDir);
+            opened[i] = new RegistryLog(partitionDir, fsync);
+            opened[i].open(segments.isEmpty() ? 0 : segments.get(segments.size() - 1) + 1);
+        }
+        logs = opened;
+        // 恢复的内容立即落一次快照, 分区数变了时旧目录里的实例已经按新分区写进快照
+        snapshot(dir);
+        for (Path partitionDir : partitionDirs) {
+            if (partitionId(partitionDir) >= opened.length) {
+                deleteDir(partitionDir);
+            }
+        }
+
+        long intervalMs = Long.parseLong(RegistryCenter.getProperty(RegistryCenter.PERSIST_SNAPSHOT_INTERVAL_MS,
+                String.valueOf(DEFAULT_SNAPSHOT_INTERVAL_MS)));
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "registry-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                snapshot(dir);
+            } catch (Throwable e) {
+                logger.error("registry snapshot failed", e);
+            }
+        }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 所有分区各做一次快照
+     */
+    static synchronized void snapshot(Path dir) throws IOException {
+        RegistryLog[] current = logs;
+        for (RegistryPartition partition : RegistryPartition.all()) {
+            snapshot(dir.resolve(PARTITION_PREFIX + partition.getId()), partition, current[partition.getId()]);
+        }
+    }
+
+    private static void snapshot(Path partitionDir, RegistryPartition partition, RegistryLog log) throws IOException {
+        // 切段和取快照列表在写线程里一起做, 快照正好包含新段之前的所有变更
+        long[] segment = new long[1];
+        List<ServiceView> views = new ArrayList<>();
+        CompletableFuture<Void> done = partition.submit(() -> {
+            try {
+                segment[0] = log.roll();
+            } catch (IOException e) {
+                throw new IllegalStateException("roll registry log of " + partitionDir + " failed", e);
+            }
+            views.addAll(partition.views());
+        });
+        RegistryWriter.await(done);
+
+        ByteBuf out = Unpooled.buffer();
+        try {
+            int count = 0;
+            for (ServiceView view : views) {
+                for (InstanceRecord node : view.getNodes()) {
+                    RegistryLog.encode(out, RegistryLog.PUT, node);
+                    count++;
+                }
+            }
+            Path tmp = partitionDir.resolve(SNAPSHOT + ".tmp");
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                        SNAPSHOT_HEADER + out.readableBytes());
+                mapped.putInt(MAGIC);
+                mapped.putInt(VERSION);
+                mapped.putLong(segment[0]);
+                mapped.putInt(count);
+                mapped.put(out.nioBuffer());
+                mapped.force();
+            }
+            Utils.atomicMoveWithFallback(tmp, partitionDir.resolve(SNAPSHOT));
+        } finally {
+            out.release();
+        }
+        log.deleteBefore(segment[0]);
+    }
+
+    /**
+     * 读一个分区目录: 快照 + 快照段号之后的日志
+     */
+    private static void load(Path partitionDir, Map<String, RegistryLog.Entry> entries) throws IOException {
+        long from = 0;
+        Path snapshot = partitionDir.resolve(SNAPSHOT);
+        if (Files.exists(snapshot)) {
+            try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+                ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (mapped.remaining() >= SNAPSHOT_HEADER && mapped.getInt() == MAGIC && mapped.getInt() == VERSION) {
+                    from = mapped.getLong();
+                    int count = mapped.getInt();
+                    int before = entries.size();
+                    RegistryLog.decode(mapped, entries);
+                    if (entries.size() - before < count) {
+                        logger.warn("snapshot {} is incomplete, {} of {} instances", snapshot,
+                                entries.size() - before, count);
+                    }
+                } else {
+                    logger.warn("ignore unknown snapshot {}", snapshot);
+                }
+            }
+        }
+        for (long segment : RegistryLog.segments(partitionDir)) {
+            if (segment >= from) {
+                RegistryLog.replay(RegistryLog.path(partitionDir, segment), entries);
+            }
+        }
+    }
+
+    private static List<Path> partitionDirs(Path dir) throws IOException {
+        List<Path> dirs = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, PARTITION_PREFIX + "*")) {
+            for (Path file : files) {
+                if (Files.isDirectory(file) && partitionId(file) >= 0) {
+                    dirs.add(file);
+                }
+            }
+        }
+        return dirs;
+    }
+
+    private static int partitionId(Path partitionDir) {
+        try {
+            return Integer.parseInt(partitionDir.getFileName().toString().substring(PARTITION_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void deleteDir(Path partitionDir) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(partitionDir)) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+        Files.deleteIfExists(partitionDir);
+    }
+}
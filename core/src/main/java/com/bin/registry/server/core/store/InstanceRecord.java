@@ -0,0 +1,491 @@
+package com.bin.registry.server.core.store;
+
+import com.bin.registry.server.RegistryCenter;
+import com.bin.registry.server.common.utils.MD5Utils;
+import com.bin.registry.server.core.timer.WatchKey;
+import com.bin.registry.server.model.Node;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+/**
+ *  注册表内部保存的紧凑实例
+ *
+ *  服务名, cluster, zone, env, group 这类低基数字符串通过共享字典编码成 int;
+ *  ip, container, tags, metadata 随实例变化(容器漂移会不断产生新值), 不进字典, 直接保存字符串
+ *  数值字段用基本类型(空值用哨兵表示), 时间统一是毫秒时间戳;
+ *  对外的 Node json 结构只在 API 边界生成(见 InstanceRecordAdapter)
+ *
+ *  实例 key 为 serviceName + ip + port, 保存在堆内;
+ *  对外的字段在 InstanceStore 的内容槽位里(RecordContent), 已发布的内容槽位不再写入:
+ *      写线程的修改(update, setHealthy ...)写在草稿槽位上, flush 时 publish 一次性替换
+ *  心跳相关的字段在心跳槽位里, 随心跳原地更新
+ */
+public final class InstanceRecord extends WatchKey {
+
+    public static final StringDictionary DICTIONARY = new StringDictionary();
+
+    public static final InstanceStore STORE = InstanceStore.create(
+            RegistryCenter.getProperty(RegistryCenter.STORE, "heap"), InstanceStore.RECORD_SIZE);
+
+    public static final InstanceStore LIVE = InstanceStore.create(
+            RegistryCenter.getProperty(RegistryCenter.STORE, "heap"), InstanceStore.LIVE_SIZE);
+
+    static final long NULL_LONG = Long.MIN_VALUE;
+
+    static final int NULL_INT = Integer.MIN_VALUE;
+
+    static final short NULL_SHORT = Short.MIN_VALUE;
+
+    static final byte NULL_BYTE = -1;
+
+    private final int serviceName;
+
+    private final String ip;
+
+    private final int port;
+
+    /**
+     * 对外发布的内容
+     */
+    private volatile RecordContent content;
+
+    /**
+     * 还没发布的修改, 只由写线程(或者实例交给写线程之前的创建方)访问
+     * 实例第一次发布之前草稿就是 content 本身, 还没有快照能读到它
+     */
+    private RecordContent draft;
+
+    private volatile Live live;
+
+    private InstanceRecord(int serviceName, String ip, int port) {
+        this.serviceName = serviceName;
+        this.ip = ip;
+        this.port = port;
+    }
+
+    public static InstanceRecord of(Node node) {
+        InstanceRecord record = new InstanceRecord(DICTIONARY.encode(node.getServiceName()),
+                node.getIp(), node.getPort() == null ? NULL_INT : node.getPort());
+        record.live = Live.allocate();
+        record.draft = RecordContent.allocate(STORE, null, null, null);
+        record.update(node);
+        record.content = record.draft;
+        return record;
+    }
+
+    /**
+     * 不进注册表的只读实例(其他机房的实例), 内容和心跳都在堆内, 不占 store 的槽位, 不用释放
+     */
+    public static InstanceRecord detached(Node node, long createTime, long onLineTime, boolean healthy) {
+        InstanceRecord record = new InstanceRecord(DICTIONARY.encode(node.getServiceName()),
+                node.getIp(), node.getPort() == null ? NULL_INT : node.getPort());
+        record.live = new Live(-1, ByteBuffer.allocate(InstanceStore.LIVE_SIZE), 0);
+        record.draft = RecordContent.heap(null, null, null);
+        record.update(node);
+        record.setCreateTime(createTime);
+        record.setOnLineTime(onLineTime);
+        record.setHealthy(healthy);
+        record.content = record.draft;
+        record.publish();
+        return record;
+    }
+
+    /**
+     * 只用于按 key 查找的探针, 服务名从没出现过时返回 null
+     */
+    public static InstanceRecord probe(String serviceName, String ip, Integer port) {
+        int service = DICTIONARY.lookup(serviceName);
+        if (service == StringDictionary.NULL) {
+            return null;
+        }
+        return new InstanceRecord(service, ip, port == null ? NULL_INT : port);
+    }
+
+    public static InstanceRecord probe(Node node) {
+        return probe(node.getServiceName(), node.getIp(), node.getPort());
+    }
+
+    /**
+     * 心跳上报的可变字段(Node 里除了实例 key 的全部字段), 写在草稿上
+     */
+    public void update(Node node) {
+        RecordContent edit = edit();
+        edit.buffer.putLong(edit.base + InstanceStore.SERVICE_ID, node.getServiceId() == null ? NULL_LONG : node.getServiceId());
+        edit.buffer.put(edit.base + InstanceStore.RUNNING,
+                node.getRunning() == null ? NULL_BYTE : (byte) (node.getRunning() ? 1 : 0));
+        edit.putInt(InstanceStore.CLUSTER_NAME, DICTIONARY.encode(node.getClusterName()));
+        edit.putInt(InstanceStore.SYSTEM_ENV, DICTIONARY.encode(node.getSystemEnv()));
+        edit.putInt(InstanceStore.PID, node.getPid() == null ? NULL_INT : node.getPid());
+        edit.buffer.putShort(edit.base + InstanceStore.WEIGHT, node.getWeight() == null ? NULL_SHORT : node.getWeight());
+        edit.putInt(InstanceStore.ZONE_NAME, DICTIONARY.encode(node.getZoneName()));
+        edit.putInt(InstanceStore.GROUP_ARRAY, DICTIONARY.encode(node.getGroupArray()));
+        if (!Objects.equals(edit.container, node.getContainer()) || !Objects.equals(edit.tags, node.getTags())
+                || !Objects.equals(edit.metadata, node.getMetadata())) {
+            draft = edit.withStrings(node.getContainer(), node.getTags(), node.getMetadata());
+        }
+    }
+
+    /**
+     * 心跳上报的可变字段和待发布的内容(草稿, 没有草稿时是已发布的内容)是否一致, 只在写线程调用
+     * 其他线程用 content().sameContent(node)
+     */
+    public boolean sameContent(Node node) {
+        return pending().sameContent(node);
+    }
+
+    public Node toNode() {
+        RecordContent current = content;
+        Node node = new Node();
+        node.setServiceId(current.getServiceId());
+        node.setServiceName(getServiceName());
+        node.setIp(getIp());
+        node.setRunning(current.getRunning());
+        node.setClusterName(current.getClusterName());
+        node.setContainer(current.getContainer());
+        node.setSystemEnv(current.getSystemEnv());
+        node.setPort(getPort());
+        node.setPid(current.getPid());
+        node.setWeight(current.getWeight());
+        node.setZoneName(current.getZoneName());
+        node.setGroupArray(current.getGroupArray());
+        node.setTags(current.getTags());
+        node.setMetadata(current.getMetadata());
+        return node;
+    }
+
+    /**
+     * 对外发布的内容, 同一个引用里读到的字段属于同一个版本
+     */
+    public RecordContent content() {
+        return content;
+    }
+
+    /**
+     * 写线程看到的内容: 有未发布的修改时是草稿, 否则是已发布的内容
+     */
+    public RecordContent pending() {
+        RecordContent edit = draft;
+        return edit != null ? edit : content;
+    }
+
+    /**
+     * 是否有还没发布的修改(包括还没发布过的新实例), 只在写线程调用
+     */
+    public boolean hasDraft() {
+        return draft != null;
+    }
+
+    /**
+     * 草稿, 已发布的内容不能再写, 第一次修改时拷贝到新槽位
+     */
+    private RecordContent edit() {
+        RecordContent edit = draft;
+        if (edit == null) {
+            edit = content.copy(STORE);
+            draft = edit;
+        }
+        return edit;
+    }
+
+    /**
+     * 发布草稿: 在草稿槽位里写好 json 和内容摘要(对外 json 的 md5 低 64 位), 再整体替换 content
+     * 旧的内容槽位交还 store, 隔离 REUSE_DELAY_MS 后才复用; 没有草稿时什么都不做
+     * 只在写线程调用
+     */
+    public long publish() {
+        RecordContent edit = draft;
+        if (edit == null) {
+            return content.checksum;
+        }
+        String json = InstanceRecordAdapter.toJson(this, edit);
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        int length = 0;
+        if (bytes.length <= InstanceStore.JSON_CAPACITY) {
+            edit.buffer.put(edit.base + InstanceStore.JSON, bytes);
+            length = bytes.length;
+        }
+        long checksum = new BigInteger(MD5Utils.md5(json), 16).longValue();
+        RecordContent previous = content;
+        content = edit.sealed(length, checksum);
+        draft = null;
+        if (previous.slot >= 0 && previous.slot != edit.slot) {
+            STORE.release(previous.slot);
+        }
+        return checksum;
+    }
+
+    public long getChecksum() {
+        return content.checksum;
+    }
+
+    /**
+     * 挂上心跳检查任务, 已经挂过时返回 false, 保证每个实例只有一个任务
+     * 心跳槽位的写入都和 release 持同一把锁, 不会写进已经归还的槽位, 也不会在拷贝之后丢失
+     */
+    public synchronized boolean arm() {
+        Live current = live;
+        return InstanceStore.INT.compareAndSet(current.buffer, current.base + InstanceStore.TIMER, 0, 1);
+    }
+
+    public synchronized void disarm() {
+        Live current = live;
+        InstanceStore.INT.setVolatile(current.buffer, current.base + InstanceStore.TIMER, 0);
+    }
+
+    /**
+     * 客户端最近一次注册请求体的摘要, 0 表示未知
+     * 轻量心跳带上这个摘要, 不一致时要求客户端重新注册
+     */
+    public long getRegistration() {
+        Live current = live;
+        return current.buffer.getLong(current.base + InstanceStore.REGISTRATION);
+    }
+
+    public synchronized void setRegistration(long registration) {
+        Live current = live;
+        current.buffer.putLong(current.base + InstanceStore.REGISTRATION, registration);
+    }
+
+    /**
+     * 把对外 json 直接写到响应里, 槽位里有缓存时只是一次字节拷贝
+     */
+    public void writeJson(ByteBuf out) {
+        RecordContent current = content;
+        if (current.jsonLength > 0) {
+            out.writeBytes(current.view, current.base + InstanceStore.JSON, current.jsonLength);
+        } else {
+            out.writeCharSequence(InstanceRecordAdapter.toJson(this, current), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * 实例已经从注册表剔除, 把槽位内容拷贝到堆内后归还槽位
+     * 旧快照和变更日志里还引用着这个实例, 之后仍然可以读取; 没发布的草稿直接丢弃
+     * 心跳槽位的写入持同一把锁, 拷贝之后的写入落在堆内的副本上
+     */
+    public synchronized void release() {
+        RecordContent current = content;
+        RecordContent edit = draft;
+        draft = null;
+        if (edit != null && edit.slot >= 0 && edit.slot != current.slot) {
+            STORE.release(edit.slot);
+        }
+        if (current.slot >= 0) {
+            byte[] copy = new byte[InstanceStore.RECORD_SIZE];
+            current.buffer.get(current.base, copy);
+            ByteBuffer detached = ByteBuffer.wrap(copy);
+            content = current.detached(detached, Unpooled.wrappedBuffer(detached));
+            STORE.release(current.slot);
+        }
+        Live heartbeat = live;
+        if (heartbeat.slot >= 0) {
+            byte[] copy = new byte[InstanceStore.LIVE_SIZE];
+            heartbeat.buffer.get(heartbeat.base, copy);
+            live = new Live(-1, ByteBuffer.wrap(copy), 0);
+            LIVE.release(heartbeat.slot);
+        }
+    }
+
+    /**
+     * 服务内唯一标识一个实例
+     */
+    public String instanceKey() {
+        return getIp() + ":" + getPort();
+    }
+
+    public boolean isActive() {
+        return content.isActive();
+    }
+
+    /**
+     * 心跳是否正常, 超过阈值没有心跳时标记为不健康
+     */
+    public boolean isHealthy() {
+        return content.isHealthy();
+    }
+
+    public void setHealthy(boolean healthy) {
+        RecordContent edit = edit();
+        edit.buffer.put(edit.base + InstanceStore.HEALTH, (byte) (healthy ? 0 : 1));
+    }
+
+    public Long getServiceId() {
+        return content.getServiceId();
+    }
+
+    public String getServiceName() {
+        return DICTIONARY.decode(serviceName);
+    }
+
+    public String getIp() {
+        return ip;
+    }
+
+    public Boolean getRunning() {
+        return content.getRunning();
+    }
+
+    public void setRunning(boolean running) {
+        RecordContent edit = edit();
+        edit.buffer.put(edit.base + InstanceStore.RUNNING, (byte) (running ? 1 : 0));
+    }
+
+    public String getClusterName() {
+        return content.getClusterName();
+    }
+
+    public String getContainer() {
+        return content.getContainer();
+    }
+
+    public String getSystemEnv() {
+        return content.getSystemEnv();
+    }
+
+    public Integer getPort() {
+        return port == NULL_INT ? null : port;
+    }
+
+    public Integer getPid() {
+        return content.getPid();
+    }
+
+    public Short getWeight() {
+        return content.getWeight();
+    }
+
+    public String getZoneName() {
+        return content.getZoneName();
+    }
+
+    public String getGroupArray() {
+        return content.getGroupArray();
+    }
+
+    public String getTags() {
+        return content.getTags();
+    }
+
+    public String getMetadata() {
+        return content.getMetadata();
+    }
+
+    public long getOnLineTime() {
+        return content.getOnLineTime();
+    }
+
+    public void setOnLineTime(long onLineTime) {
+        RecordContent edit = edit();
+        edit.buffer.putLong(edit.base + InstanceStore.ON_LINE_TIME, onLineTime);
+    }
+
+    public long getCreateTime() {
+        return content.getCreateTime();
+    }
+
+    public void setCreateTime(long createTime) {
+        RecordContent edit = edit();
+        edit.buffer.putLong(edit.base + InstanceStore.CREATE_TIME, createTime);
+    }
+
+    public long getHeartbeatTime() {
+        Live current = live;
+        return (long) InstanceStore.LONG.getVolatile(current.buffer, current.base + InstanceStore.HEARTBEAT_TIME);
+    }
+
+    public synchronized void setHeartbeatTime(long heartbeatTime) {
+        Live current = live;
+        InstanceStore.LONG.setVolatile(current.buffer, current.base + InstanceStore.HEARTBEAT_TIME, heartbeatTime);
+    }
+
+    /**
+     * 其他节点复制过来的心跳时间, 只往前推, 不记录心跳间隔(不是本节点观察到的心跳)
+     */
+    public synchronized void advanceHeartbeatTime(long heartbeatTime) {
+        if (heartbeatTime > getHeartbeatTime()) {
+            setHeartbeatTime(heartbeatTime);
+        }
+    }
+
+    /**
+     * 收到心跳: 记录和上一次心跳的间隔, 再刷新心跳时间
+     */
+    public synchronized void renewHeartbeat(long now) {
+        long last = getHeartbeatTime();
+        if (last > 0 && now > last) {
+            int count = getInt(InstanceStore.INTERVAL_COUNT);
+            long interval = Math.min(now - last, Integer.MAX_VALUE);
+            putInt(InstanceStore.INTERVALS + (count % InstanceStore.INTERVAL_WINDOW) * 4, (int) interval);
+            putInt(InstanceStore.INTERVAL_COUNT, count == Integer.MAX_VALUE ? InstanceStore.INTERVAL_WINDOW : count + 1);
+        }
+        setHeartbeatTime(now);
+    }
+
+    /**
+     * 环形缓冲里有效的心跳间隔数
+     */
+    public int intervalCount() {
+        return Math.min(getInt(InstanceStore.INTERVAL_COUNT), InstanceStore.INTERVAL_WINDOW);
+    }
+
+    public int interval(int index) {
+        return getInt(InstanceStore.INTERVALS + index * 4);
+    }
+
+    private int getInt(int offset) {
+        Live current = live;
+        return current.buffer.getInt(current.base + offset);
+    }
+
+    private void putInt(int offset, int value) {
+        Live current = live;
+        current.buffer.putInt(current.base + offset, value);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        InstanceRecord that = (InstanceRecord) o;
+        return serviceName == that.serviceName && port == that.port && Objects.equals(ip, that.ip);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * serviceName + Objects.hashCode(ip)) + port;
+    }
+
+    @Override
+    public String toString() {
+        return "InstanceRecord{" + getServiceName() + "/" + instanceKey() + '}';
+    }
+
+
+    /**
+     * 心跳槽位的位置, 和 RecordContent 一样整体替换
+     */
+    private static final class Live {
+
+        final int slot;
+
+        final ByteBuffer buffer;
+
+        final int base;
+
+        Live(int slot, ByteBuffer buffer, int base) {
+            this.slot = slot;
+            this.buffer = buffer;
+            this.base = base;
+        }
+
+        static Live allocate() {
+            int slot = LIVE.allocate();
+            return new Live(slot, LIVE.buffer(slot), LIVE.base(slot));
+        }
+    }
+}
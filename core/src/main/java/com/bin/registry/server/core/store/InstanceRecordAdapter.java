@@ -0,0 +1,86 @@
+package com.bin.registry.server.core.store;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+/**
+ *  InstanceRecord 按 Node 的 json 结构输出, 字段顺序和 Node 一致, 空值不输出
+ *  不健康的实例额外带上 "healthy":false
+ *  只用于响应, 请求仍然解析成 Node
+ */
+public class InstanceRecordAdapter extends TypeAdapter<InstanceRecord> {
+
+    @Override
+    public void write(JsonWriter out, InstanceRecord record) throws IOException {
+        if (record == null) {
+            out.nullValue();
+            return;
+        }
+        write(out, record, record.content());
+    }
+
+    /**
+     * 实例 key 加上指定版本的内容, 写线程发布草稿前用它生成要缓存的 json
+     * 和 Gson 默认设置(htmlSafe)下的输出一致
+     */
+    static String toJson(InstanceRecord record, RecordContent content) {
+        StringWriter buffer = new StringWriter(256);
+        JsonWriter out = new JsonWriter(buffer);
+        out.setHtmlSafe(true);
+        try {
+            write(out, record, content);
+            out.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return buffer.toString();
+    }
+
+    private static void write(JsonWriter out, InstanceRecord record, RecordContent content) throws IOException {
+        out.beginObject();
+        if (content.getServiceId() != null) {
+            out.name("serviceId").value(content.getServiceId());
+        }
+        string(out, "serviceName", record.getServiceName());
+        string(out, "ip", record.getIp());
+        if (content.getRunning() != null) {
+            out.name("running").value(content.getRunning());
+        }
+        string(out, "clusterName", content.getClusterName());
+        string(out, "container", content.getContainer());
+        string(out, "systemEnv", content.getSystemEnv());
+        if (record.getPort() != null) {
+            out.name("port").value(record.getPort());
+        }
+        if (content.getPid() != null) {
+            out.name("pid").value(content.getPid());
+        }
+        if (content.getWeight() != null) {
+            out.name("weight").value(content.getWeight());
+        }
+        string(out, "zoneName", content.getZoneName());
+        string(out, "groupArray", content.getGroupArray());
+        string(out, "tags", content.getTags());
+        string(out, "metadata", content.getMetadata());
+        if (!content.isHealthy()) {
+            // 只有服务没有健康实例时才会下发不健康实例
+            out.name("healthy").value(false);
+        }
+        out.endObject();
+    }
+
+    @Override
+    public InstanceRecord read(JsonReader in) {
+        throw new UnsupportedOperationException("InstanceRecord is write only, read Node instead");
+    }
+
+    private static void string(JsonWriter out, String name, String value) throws IOException {
+        if (value != null) {
+            out.name(name).value(value);
+        }
+    }
+}
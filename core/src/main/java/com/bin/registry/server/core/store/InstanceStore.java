@@ -0,0 +1,207 @@
+package com.bin.registry.server.core.store;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *  实例字段的定长槽位存储
+ *
+ *  槽位按 slab 分配, slab 可以是堆内 ByteBuffer 也可以是堆外 direct ByteBuffer,
+ *  堆外时 GC 只看到 InstanceRecord 这层很薄的索引(实例 key + 槽位引用)
+ *
+ *  有两种槽位, 各用一个 store:
+ *      内容槽位(RECORD_SIZE): 对外的实例字段和缓存的 json, 发布后不再写入, 内容变化时写到新槽位再整体替换
+ *      心跳槽位(LIVE_SIZE): 心跳时间, 心跳间隔, 检查任务标记和注册摘要, 实例存活期间一直原地更新
+ *
+ *  释放的槽位先隔离一段时间再复用, 避免还拿着旧引用的读取方读到别的实例
+ */
+public final class InstanceStore {
+
+    public static final int RECORD_SIZE = 512;
+
+    static final int SERVICE_ID = 0;
+
+    static final int ON_LINE_TIME = 8;
+
+    static final int CREATE_TIME = 16;
+
+    static final int CLUSTER_NAME = 24;
+
+    static final int SYSTEM_ENV = 28;
+
+    static final int PID = 32;
+
+    static final int ZONE_NAME = 36;
+
+    static final int GROUP_ARRAY = 40;
+
+    static final int WEIGHT = 44;
+
+    static final int RUNNING = 46;
+
+    static final int HEALTH = 47;
+
+    static final int JSON = 48;
+
+    /**
+     * 槽位能缓存的 json 最大长度, 超过时响应回退到序列化
+     */
+    static final int JSON_CAPACITY = RECORD_SIZE - JSON;
+
+    static final int HEARTBEAT_TIME = 0;
+
+    static final int REGISTRATION = 8;
+
+    static final int TIMER = 16;
+
+    /**
+     * 累计记录过的心跳间隔数, 间隔环形缓冲按它取模写入
+     */
+    static final int INTERVAL_COUNT = 20;
+
+    static final int INTERVALS = 24;
+
+    /**
+     * 每个实例保留最近多少个心跳间隔
+     */
+    public static final int INTERVAL_WINDOW = 16;
+
+    public static final int LIVE_SIZE = INTERVALS + INTERVAL_WINDOW * 4 + 8;
+
+    /**
+     * 每个 slab 的槽位数, 512 * 8192 = 4MB
+     */
+    static final int SLAB_RECORDS = 8192;
+
+    /**
+     * 释放的槽位至少隔离这么久才复用, 要大于长轮询的最长挂起时间
+     */
+    static final long REUSE_DELAY_MS = 60 * 1000;
+
+    /**
+     * 心跳时间需要 volatile 读写, 心跳线程原地更新, 剔除线程读取
+     */
+    static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    private final int recordSize;
+
+    private final boolean direct;
+
+    /**
+     * 只在新增 slab 时加锁整体替换, 读取不加锁
+     */
+    private volatile ByteBuffer[] buffers = new ByteBuffer[0];
+
+    private volatile ByteBuf[] views = new ByteBuf[0];
+
+    /**
+     * 下一个从没用过的槽位
+     */
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * 释放的槽位和释放时间, 按释放顺序排队; 各分区的写线程并发分配和释放, 不共用一把锁
+     */
+    private final Queue<long[]> released = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger releasedCount = new AtomicInteger();
+
+    public InstanceStore(boolean direct, int recordSize) {
+        this.direct = direct;
+        this.recordSize = recordSize;
+    }
+
+    public static InstanceStore create(String engine, int recordSize) {
+        return new InstanceStore("offheap".equalsIgnoreCase(engine), recordSize);
+    }
+
+    /**
+     * 分配一个清零的槽位
+     * 队首隔离期满时复用; 并发时可能取到还没满的槽位, 放回队尾多隔离一会儿, 不会提前复用
+     */
+    public int allocate() {
+        long[] head = released.peek();
+        if (head != null && reusable(head)) {
+            long[] taken = released.poll();
+            if (taken != null) {
+                if (reusable(taken)) {
+                    releasedCount.decrementAndGet();
+                    int slot = (int) taken[0];
+                    ByteBuffer buffer = buffer(slot);
+                    int base = base(slot);
+                    for (int i = 0; i < recordSize; i += 8) {
+                        buffer.putLong(base + i, 0L);
+                    }
+                    return slot;
+                }
+                released.offer(taken);
+            }
+        }
+        int slot = next.getAndIncrement();
+        if (slot / SLAB_RECORDS >= buffers.length) {
+            grow(slot / SLAB_RECORDS);
+        }
+        return slot;
+    }
+
+    private static boolean reusable(long[] released) {
+        return System.currentTimeMillis() - released[1] >= REUSE_DELAY_MS;
+    }
+
+    private synchronized void grow(int slab) {
+        while (slab >= buffers.length) {
+            ByteBuffer buffer = direct
+                    ? ByteBuffer.allocateDirect(SLAB_RECORDS * recordSize)
+                    : ByteBuffer.allocate(SLAB_RECORDS * recordSize);
+            ByteBuffer[] grownBuffers = Arrays.copyOf(buffers, buffers.length + 1);
+            ByteBuf[] grownViews = Arrays.copyOf(views, views.length + 1);
+            grownBuffers[grownBuffers.length - 1] = buffer;
+            grownViews[grownViews.length - 1] = Unpooled.wrappedBuffer(buffer);
+            views = grownViews;
+            buffers = grownBuffers;
+        }
+    }
+
+    public void release(int slot) {
+        released.offer(new long[]{slot, System.currentTimeMillis()});
+        releasedCount.incrementAndGet();
+    }
+
+    public ByteBuffer buffer(int slot) {
+        return buffers[slot / SLAB_RECORDS];
+    }
+
+    public ByteBuf view(int slot) {
+        return views[slot / SLAB_RECORDS];
+    }
+
+    public int base(int slot) {
+        return (slot % SLAB_RECORDS) * recordSize;
+    }
+
+    public int recordSize() {
+        return recordSize;
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * 已经分配出去的槽位数
+     */
+    public int size() {
+        return next.get() - releasedCount.get();
+    }
+}
@@ -0,0 +1,192 @@
+package com.bin.registry.server.core.store;
+
+import com.bin.registry.server.model.Node;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+/**
+ *  实例对外内容的一个版本: 内容槽位的位置(buffer, view, base), 堆内的高基数字段, 缓存的 json 长度和摘要
+ *
+ *  InstanceRecord 通过一个 volatile 引用整体发布, 读取方拿到的槽位位置和长度总是配套的;
+ *  发布后槽位不再写入, 内容变化时写线程在新槽位上编辑草稿, 发布时替换引用, 旧槽位隔离后复用
+ */
+public final class RecordContent {
+
+    /**
+     * -1 表示槽位内容已经拷贝到堆内
+     */
+    final int slot;
+
+    final ByteBuffer buffer;
+
+    final ByteBuf view;
+
+    final int base;
+
+    /**
+     * container, tags 和 metadata 的取值随实例变化, 不进全局字典, 直接保存在堆内
+     */
+    final String container;
+
+    final String tags;
+
+    final String metadata;
+
+    /**
+     * 槽位里缓存的 json 长度, 0 表示没有缓存(还是草稿或者超长), 响应回退到序列化
+     */
+    final int jsonLength;
+
+    final long checksum;
+
+    RecordContent(int slot, ByteBuffer buffer, ByteBuf view, int base, String container, String tags, String metadata,
+                  int jsonLength, long checksum) {
+        this.slot = slot;
+        this.buffer = buffer;
+        this.view = view;
+        this.base = base;
+        this.container = container;
+        this.tags = tags;
+        this.metadata = metadata;
+        this.jsonLength = jsonLength;
+        this.checksum = checksum;
+    }
+
+    /**
+     * 新分配一个清零的内容槽位作为草稿
+     */
+    static RecordContent allocate(InstanceStore store, String container, String tags, String metadata) {
+        int slot = store.allocate();
+        return new RecordContent(slot, store.buffer(slot), store.view(slot), store.base(slot), container, tags, metadata, 0, 0L);
+    }
+
+    /**
+     * 堆内的清零内容, 不占 store 的槽位, 用于不进注册表的实例
+     */
+    static RecordContent heap(String container, String tags, String metadata) {
+        ByteBuffer buffer = ByteBuffer.allocate(InstanceStore.RECORD_SIZE);
+        return new RecordContent(-1, buffer, Unpooled.wrappedBuffer(buffer), 0, container, tags, metadata, 0, 0L);
+    }
+
+    /**
+     * 拷贝字段(不含 json)到新槽位, 作为下一个版本的草稿
+     */
+    RecordContent copy(InstanceStore store) {
+        RecordContent copy = allocate(store, container, tags, metadata);
+        for (int i = 0; i < InstanceStore.JSON; i += 8) {
+            copy.buffer.putLong(copy.base + i, buffer.getLong(base + i));
+        }
+        return copy;
+    }
+
+    RecordContent withStrings(String container, String tags, String metadata) {
+        return new RecordContent(slot, buffer, view, base, container, tags, metadata, jsonLength, checksum);
+    }
+
+    RecordContent sealed(int jsonLength, long checksum) {
+        return new RecordContent(slot, buffer, view, base, container, tags, metadata, jsonLength, checksum);
+    }
+
+    RecordContent detached(ByteBuffer buffer, ByteBuf view) {
+        return new RecordContent(-1, buffer, view, 0, container, tags, metadata, jsonLength, checksum);
+    }
+
+    /**
+     * 心跳上报的可变字段是否和这个版本一致, 和 InstanceRecord.update 写入的字段一一对应
+     */
+    public boolean sameContent(Node node) {
+        return Objects.equals(getRunning(), node.getRunning())
+                && Objects.equals(getClusterName(), node.getClusterName())
+                && Objects.equals(getTags(), node.getTags())
+                && Objects.equals(getWeight(), node.getWeight())
+                && Objects.equals(getMetadata(), node.getMetadata())
+                && Objects.equals(getServiceId(), node.getServiceId())
+                && Objects.equals(getPid(), node.getPid())
+                && Objects.equals(getSystemEnv(), node.getSystemEnv())
+                && Objects.equals(getZoneName(), node.getZoneName())
+                && Objects.equals(getGroupArray(), node.getGroupArray())
+                && Objects.equals(getContainer(), node.getContainer());
+    }
+
+    public Long getServiceId() {
+        long serviceId = buffer.getLong(base + InstanceStore.SERVICE_ID);
+        return serviceId == InstanceRecord.NULL_LONG ? null : serviceId;
+    }
+
+    public Boolean getRunning() {
+        byte running = buffer.get(base + InstanceStore.RUNNING);
+        return running == InstanceRecord.NULL_BYTE ? null : running == 1;
+    }
+
+    public boolean isActive() {
+        return buffer.get(base + InstanceStore.RUNNING) == 1;
+    }
+
+    /**
+     * 槽位清零即健康
+     */
+    public boolean isHealthy() {
+        return buffer.get(base + InstanceStore.HEALTH) == 0;
+    }
+
+    public String getClusterName() {
+        return InstanceRecord.DICTIONARY.decode(getInt(InstanceStore.CLUSTER_NAME));
+    }
+
+    public String getContainer() {
+        return container;
+    }
+
+    public String getSystemEnv() {
+        return InstanceRecord.DICTIONARY.decode(getInt(InstanceStore.SYSTEM_ENV));
+    }
+
+    public Integer getPid() {
+        int pid = getInt(InstanceStore.PID);
+        return pid == InstanceRecord.NULL_INT ? null : pid;
+    }
+
+    public Short getWeight() {
+        short weight = buffer.getShort(base + InstanceStore.WEIGHT);
+        return weight == InstanceRecord.NULL_SHORT ? null : weight;
+    }
+
+    public String getZoneName() {
+        return InstanceRecord.DICTIONARY.decode(getInt(InstanceStore.ZONE_NAME));
+    }
+
+    public String getGroupArray() {
+        return InstanceRecord.DICTIONARY.decode(getInt(InstanceStore.GROUP_ARRAY));
+    }
+
+    public String getTags() {
+        return tags;
+    }
+
+    public String getMetadata() {
+        return metadata;
+    }
+
+    public long getOnLineTime() {
+        return buffer.getLong(base + InstanceStore.ON_LINE_TIME);
+    }
+
+    public long getCreateTime() {
+        return buffer.getLong(base + InstanceStore.CREATE_TIME);
+    }
+
+    public long getChecksum() {
+        return checksum;
+    }
+
+    int getInt(int offset) {
+        return buffer.getInt(base + offset);
+    }
+
+    void putInt(int offset, int value) {
+        buffer.putInt(base + offset, value);
+    }
+}
@@ -0,0 +1,92 @@
+package com.bin.registry.server.core.store;
+
+import com.bin.registry.server.common.utils.JsonUtils;
+import com.bin.registry.server.model.JsonResult;
+import io.netty.buffer.ByteBuf;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *  实例列表的响应直接写到 ByteBuf, 每个实例只是拷贝槽位里缓存的 json,
+ *  输出和 Gson 序列化 JsonResult 的结果一致
+ *
+ *  支持 data 为 List&lt;InstanceRecord&gt; 或 Map&lt;String, List&lt;InstanceRecord&gt;&gt;, 其余返回 false 由调用方走 Gson
+ */
+public final class RecordJsonEncoder {
+
+    private RecordJsonEncoder() {
+    }
+
+    public static boolean encode(JsonResult<?> result, ByteBuf out) {
+        Object data = result.getData();
+        if (!isRecords(data) && !isServiceRecords(data)) {
+            return false;
+        }
+        write(out, "{\"code\":");
+        write(out, String.valueOf(result.getCode()));
+        if (result.getMsg() != null) {
+            write(out, ",\"msg\":");
+            write(out, JsonUtils.toJson(result.getMsg()));
+        }
+        write(out, ",\"data\":");
+        if (data instanceof List) {
+            writeRecords(out, (List<?>) data);
+        } else {
+            out.writeByte('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) data).entrySet()) {
+                if (!first) {
+                    out.writeByte(',');
+                }
+                first = false;
+                write(out, JsonUtils.toJson(String.valueOf(entry.getKey())));
+                out.writeByte(':');
+                writeRecords(out, (List<?>) entry.getValue());
+            }
+            out.writeByte('}');
+        }
+        out.writeByte('}');
+        return true;
+    }
+
+    private static void writeRecords(ByteBuf out, List<?> records) {
+        out.writeByte('[');
+        for (int i = 0; i < records.size(); i++) {
+            if (i > 0) {
+                out.writeByte(',');
+            }
+            ((InstanceRecord) records.get(i)).writeJson(out);
+        }
+        out.writeByte(']');
+    }
+
+    private static boolean isRecords(Object data) {
+        if (!(data instanceof List)) {
+            return false;
+        }
+        for (Object item : (List<?>) data) {
+            if (!(item instanceof InstanceRecord)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isServiceRecords(Object data) {
+        if (!(data instanceof Map)) {
+            return false;
+        }
+        for (Object value : ((Map<?, ?>) data).values()) {
+            if (!isRecords(value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void write(ByteBuf out, String value) {
+        out.writeCharSequence(value, StandardCharsets.UTF_8);
+    }
+}
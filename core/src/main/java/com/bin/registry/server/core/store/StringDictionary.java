@@ -0,0 +1,74 @@
+package com.bin.registry.server.core.store;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ *  低基数字符串字典
+ *
+ *  serviceName, clusterName, zoneName 这类字段在几十万个实例之间大量重复,
+ *  实例里只保存编码, 同一个字符串全局只有一份
+ *  字典只增不减, 不要用来存 ip, container, tags, metadata 这种随实例变化的高基数字段
+ */
+public final class StringDictionary {
+
+    public static final int NULL = -1;
+
+    private final ConcurrentMap<String, Integer> codes = new ConcurrentHashMap<>();
+
+    private volatile String[] values = new String[256];
+
+    /**
+     * 由 this 保护
+     */
+    private int size;
+
+    /**
+     * 返回字符串的编码, 不存在时分配一个新编码
+     */
+    public int encode(String value) {
+        if (value == null) {
+            return NULL;
+        }
+        Integer code = codes.get(value);
+        if (code != null) {
+            return code;
+        }
+        synchronized (this) {
+            code = codes.get(value);
+            if (code != null) {
+                return code;
+            }
+            String[] current = values;
+            if (size == current.length) {
+                current = Arrays.copyOf(current, size << 1);
+            }
+            current[size] = value;
+            values = current;
+            code = size++;
+            // 编码通过 codes 发布, 读到编码的线程一定能看到 values 里的字符串
+            codes.put(value, code);
+            return code;
+        }
+    }
+
+    /**
+     * 只查询不分配, 不存在时返回 NULL
+     */
+    public int lookup(String value) {
+        if (value == null) {
+            return NULL;
+        }
+        Integer code = codes.get(value);
+        return code == null ? NULL : code;
+    }
+
+    public String decode(int code) {
+        return code == NULL ? null : values[code];
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+}
@@ -0,0 +1,58 @@
+package com.bin.registry.server.core.task;
+
+import com.bin.registry.server.core.DiscoveryManager;
+import com.bin.registry.server.core.timer.DelayedOperation;
+import com.bin.registry.server.http.NettyHttpResponse;
+import com.bin.registry.server.model.CallerInstance;
+import com.bin.registry.server.model.JsonResult;
+import io.netty.channel.Channel;
+
+
+/**
+ *   挂起的长轮询请求
+ *   服务变更或者超时都会完成, 完成时把当前结果写回客户端
+ */
+public class DelayedDiscovery extends DelayedOperation {
+
+    private Channel channel;
+
+    private CallerInstance caller;
+
+
+    public DelayedDiscovery(long delayMs, Channel channel, CallerInstance caller) {
+        super(delayMs);
+        this.channel = channel;
+        this.caller = caller;
+    }
+
+
+    /**
+     * 超时, 结果已经在 onComplete 里写回
+     */
+    @Override
+    public void onExpiration() {
+
+    }
+
+
+    /**
+     * 完成可能发生在分区写线程(服务变更)或者定时器线程, 拉取和序列化都交给连接自己的 event loop
+     */
+    @Override
+    public void onComplete() {
+        channel.eventLoop().execute(() ->
+                channel.writeAndFlush(NettyHttpResponse.ok(JsonResult.ok("success", DiscoveryManager.fetch(caller)))));
+    }
+
+    @Override
+    public boolean tryComplete() {
+        if (!channel.isActive() || DiscoveryManager.changed(caller)) {
+            return forceComplete();
+        }
+        return false;
+    }
+
+    public CallerInstance getCaller() {
+        return caller;
+    }
+}
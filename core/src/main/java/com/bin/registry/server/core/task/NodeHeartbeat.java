@@ -2,51 +2,58 @@ package com.bin.registry.server.core.task;
 
 import com.bin.registry.server.core.HeartbeatManager;
 import com.bin.registry.server.core.NodeManager;
-import com.bin.registry.server.core.timer.DelayedOperation;
-import com.bin.registry.server.model.Node;
-
-import java.util.List;
+import com.bin.registry.server.core.store.InstanceRecord;
+import com.bin.registry.server.core.timer.TimerTask;
 
 
 /**
  *   到时间
+ *
+ *   每个实例只有一个检查任务, 心跳只更新 heartbeatTime,
+ *   任务到期后交给 HeartbeatManager 按服务批量处理: 健康 -> 不健康 -> 剔除,
+ *   没到下一阶段就按剩余时间把自己重新挂回时间轮
  */
-public class NodeHeartbeat extends DelayedOperation {
+public class NodeHeartbeat extends TimerTask {
 
-    private Node node;
+    private final InstanceRecord node;
 
 
-    public NodeHeartbeat(long delayMs, Node node) {
+    public NodeHeartbeat(long delayMs, InstanceRecord node) {
         super(delayMs);
         this.node = node;
     }
 
 
     /**
-     * 过期了,剔除节点,通知客户端
+     * 过期了, 同一轮到期的实例攒在一起, 由 HeartbeatManager 一次性标记不健康或剔除
      */
     @Override
-    public void onExpiration() {
-        long curr = System.currentTimeMillis() ;
-        if(curr - node.getHeartbeatTime() < 16 * 1000) {
-            // 亚健康
-            HeartbeatManager.heartbeatTimer.
-                    tryCompleteElseWatch(this, List.of(node));
-        } else {
-
-            List<String> callers = NodeManager.cancelNode(node);
-
+    public void run() {
+        if (NodeManager.isRegistry(node) != node) {
+            // 已经被删除或被同 key 的新实例替换, 由新实例自己的任务负责
+            node.disarm();
+            return;
         }
+        HeartbeatManager.expired(this);
     }
 
 
+    /**
+     * 每次只由到期的执行线程把自己重挂回去, 整个实例生命周期复用同一个时间轮节点
+     */
     @Override
-    public void onComplete() {
+    protected boolean reuseEntry() {
+        return true;
+    }
+
 
+    public void rearm(long delayMs) {
+        setDelayMs(delayMs);
+        HeartbeatManager.heartbeatTimer.add(this);
     }
 
-    @Override
-    public boolean tryComplete() {
-        return false;
+
+    public InstanceRecord getNode() {
+        return node;
     }
 }
@@ -0,0 +1,39 @@
+package com.bin.registry.server.core.task;
+
+import com.bin.registry.server.core.timer.WatchKey;
+
+import java.util.Objects;
+
+/**
+ *  以服务名作为时间轮的监听 key
+ */
+public class ServiceKey extends WatchKey {
+
+    private final String serviceName;
+
+    public ServiceKey(String serviceName) {
+        this.serviceName = serviceName;
+    }
+
+    public String getServiceName() {
+        return serviceName;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        ServiceKey that = (ServiceKey) o;
+        return Objects.equals(serviceName, that.serviceName);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(serviceName);
+    }
+
+    @Override
+    public String toString() {
+        return "ServiceKey{" + serviceName + '}';
+    }
+}
@@ -28,15 +28,28 @@ public class DelayedOperationPurgatory<T extends DelayedOperation> {
 
 
 
-    private Pool<WatchKey, Watchers> watchersForKey = new Pool<>(k -> new Watchers(k));
+    /**
+     *  默认的分片数
+     */
+    public static final int DEFAULT_SHARDS = 512;
+
+    /**
+     *  默认每新增这么多个监听就清理一次已完成的任务
+     */
+    public static final int DEFAULT_PURGE_INTERVAL = 1000;
 
+    /**
+     *  key 按哈希分到多个分片, 每个分片独立加锁,
+     *  删除空 key 只阻塞同一个分片的监听
+     */
+    private final List<WatcherList> watcherLists;
 
-    private ReentrantReadWriteLock removeWatchersLock = new ReentrantReadWriteLock();
+    private final int purgeInterval;
 
     private AtomicInteger estimatedTotalOperations = new AtomicInteger(0);
 
 
-    private ExpiredOperationReaper expirationReaper = new ExpiredOperationReaper();
+    private ExpirationReaper expirationReaper;
 
     public DelayedOperationPurgatory(String purgatoryName) {
         this(purgatoryName, new Timer.SystemTimer(purgatoryName));
@@ -45,10 +58,22 @@ public class DelayedOperationPurgatory<T extends DelayedOperation> {
 
 
     public DelayedOperationPurgatory(String purgatoryName, Timer timeoutTimer) {
+        this(purgatoryName, timeoutTimer, DEFAULT_SHARDS, DEFAULT_PURGE_INTERVAL);
+    }
+
+
+    public DelayedOperationPurgatory(String purgatoryName, Timer timeoutTimer, int shards, int purgeInterval) {
         this.purgatoryName = purgatoryName;
         this.timeoutTimer = timeoutTimer;
+        this.purgeInterval = purgeInterval;
+        int count = Math.max(1, shards);
+        this.watcherLists = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            watcherLists.add(new WatcherList());
+        }
 
-            expirationReaper.start();
+        expirationReaper = new ExpirationReaper(purgatoryName, timeoutTimer, this::maybePurge);
+        expirationReaper.start();
     }
 
     /**
@@ -58,11 +83,17 @@ public class DelayedOperationPurgatory<T extends DelayedOperation> {
      * @param watchKeys
      * @return
      */
-    public void tryCompleteElseWatch(T operation, List<? extends WatchKey> watchKeys) {
+    public boolean tryCompleteElseWatch(T operation, List<? extends WatchKey> watchKeys) {
+
+        if (operation.tryComplete())
+            return true;
 
         boolean watchCreated = false;
         // 一个任务通知多个 对象
         for (WatchKey key : watchKeys) {
+            // 其他线程可能已经完成了该任务, 不再继续监听
+            if (operation.isCompleted())
+                return false;
 
             watchForOperation(key, operation);
 
@@ -71,20 +102,19 @@ public class DelayedOperationPurgatory<T extends DelayedOperation> {
                 estimatedTotalOperations.incrementAndGet();
             }
         }
-        timeoutTimer.add(operation);
+
+        // 监听期间 key 可能已经变化, 再检查一次避免错过通知
+        if (operation.maybeTryComplete())
+            return true;
+
+        if (!operation.isCompleted())
+            timeoutTimer.add(operation);
+        return false;
     }
 
 
     public int checkAndComplete(WatchKey key) {
-        ReentrantReadWriteLock.ReadLock readLock = removeWatchersLock.readLock();
-        Watchers watchers = null;
-        readLock.lock();
-        try {
-            watchers = watchersForKey.get(key);
-        } finally {
-            readLock.unlock();
-        }
-
+        Watchers watchers = watchers(key);
         if (watchers == null)
             return 0;
         else
@@ -92,15 +122,7 @@ public class DelayedOperationPurgatory<T extends DelayedOperation> {
     }
 
     public T pollByKey(WatchKey key) {
-        ReentrantReadWriteLock.ReadLock readLock = removeWatchersLock.readLock();
-        Watchers watchers = null;
-        readLock.lock();
-        try {
-            watchers = watchersForKey.get(key);
-        } finally {
-            readLock.unlock();
-        }
-
+        Watchers watchers = watchers(key);
         if (watchers == null)
             return null;
         else
@@ -108,15 +130,7 @@ public class DelayedOperationPurgatory<T extends DelayedOperation> {
     }
 
     public int check(WatchKey key) {
-        ReentrantReadWriteLock.ReadLock readLock = removeWatchersLock.readLock();
-        Watchers watchers = null;
-        readLock.lock();
-        try {
-            watchers = watchersForKey.get(key);
-        } finally {
-            readLock.unlock();
-        }
-
+        Watchers watchers = watchers(key);
         if (watchers == null)
             return 0;
         else
@@ -127,10 +141,8 @@ public class DelayedOperationPurgatory<T extends DelayedOperation> {
 
     public int watched() {
         int sum = 0;
-        Iterator<Watchers> iterator = allWatchers().iterator();
-        while (iterator.hasNext()) {
-            Watchers next = iterator.next();
-            sum += next.countWatched();
+        for (Watchers watchers : allWatchers()) {
+            sum += watchers.countWatched();
         }
         return sum;
     }
@@ -140,10 +152,11 @@ public class DelayedOperationPurgatory<T extends DelayedOperation> {
     }
 
     public List<T> cancelForKey(WatchKey key) {
-        ReentrantReadWriteLock.WriteLock writeLock = removeWatchersLock.writeLock();
+        WatcherList watcherList = watcherList(key);
+        ReentrantReadWriteLock.WriteLock writeLock = watcherList.lock.writeLock();
         writeLock.lock();
         try {
-            Watchers watchers = watchersForKey.remove(key);
+            Watchers watchers = watcherList.watchersByKey.remove(key);
             if (watchers != null)
                 return watchers.cancel();
             else
@@ -153,21 +166,28 @@ public class DelayedOperationPurgatory<T extends DelayedOperation> {
         }
     }
 
-    public Iterable<Watchers> allWatchers() {
-        ReentrantReadWriteLock.ReadLock readLock = removeWatchersLock.readLock();
-        readLock.lock();
-        try {
-            return watchersForKey.values();
-        } finally {
-            readLock.unlock();
+    public List<Watchers> allWatchers() {
+        List<Watchers> all = new ArrayList<>();
+        for (WatcherList watcherList : watcherLists) {
+            ReentrantReadWriteLock.ReadLock readLock = watcherList.lock.readLock();
+            readLock.lock();
+            try {
+                for (Watchers watchers : watcherList.watchersByKey.values()) {
+                    all.add(watchers);
+                }
+            } finally {
+                readLock.unlock();
+            }
         }
+        return all;
     }
 
     public void watchForOperation(WatchKey key, T operation) {
-        ReentrantReadWriteLock.ReadLock readLock = removeWatchersLock.readLock();
+        WatcherList watcherList = watcherList(key);
+        ReentrantReadWriteLock.ReadLock readLock = watcherList.lock.readLock();
         readLock.lock();
         try {
-            Watchers watcher = watchersForKey.getAndMaybePut(key);
+            Watchers watcher = watcherList.watchersByKey.getAndMaybePut(key);
             watcher.watch(operation);
         } finally {
             readLock.unlock();
@@ -175,15 +195,16 @@ public class DelayedOperationPurgatory<T extends DelayedOperation> {
     }
 
     public void removeKeyIfEmpty(WatchKey key, Watchers watchers) {
-        ReentrantReadWriteLock.WriteLock writeLock = removeWatchersLock.writeLock();
+        WatcherList watcherList = watcherList(key);
+        ReentrantReadWriteLock.WriteLock writeLock = watcherList.lock.writeLock();
         writeLock.lock();
         try {
             // if the current key is no longer correlated to the watchers to remove, skip
-            if (watchersForKey.get(key) != watchers)
+            if (watcherList.watchersByKey.get(key) != watchers)
                 return;
 
             if (watchers != null && watchers.isEmpty()) {
-                watchersForKey.remove(key);
+                watcherList.watchersByKey.remove(key);
             }
         } finally {
             writeLock.unlock();
@@ -191,7 +212,8 @@ public class DelayedOperationPurgatory<T extends DelayedOperation> {
     }
 
     public void shutdown() {
-            timeoutTimer.shutdown();
+        expirationReaper.shutdown();
+        timeoutTimer.shutdown();
     }
 
 
@@ -199,19 +221,52 @@ public class DelayedOperationPurgatory<T extends DelayedOperation> {
         timeoutTimer.advanceClock(timeoutMs);
     }
 
-    private class ExpiredOperationReaper extends Thread {
 
-        public ExpiredOperationReaper() {
-            setName("ExpirationReaper-" + purgatoryName);
+    /**
+     *  已完成的任务只有在同一个 key 再次 checkAndComplete 时才会从监听队列里移除,
+     *  监听数比时间轮里的任务数多出 purgeInterval 时扫一遍所有 key 清理掉
+     */
+    private void maybePurge() {
+        if (estimatedTotalOperations.get() - delayed() > purgeInterval) {
+            estimatedTotalOperations.getAndSet(delayed());
+            int purged = 0;
+            for (Watchers watchers : allWatchers()) {
+                purged += watchers.purgeCompleted();
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("Purged {} completed operations from {}", purged, purgatoryName);
+            }
         }
+    }
 
-        @Override
-        public void run() {
-            advanceClock(200L);
+
+    private Watchers watchers(WatchKey key) {
+        WatcherList watcherList = watcherList(key);
+        ReentrantReadWriteLock.ReadLock readLock = watcherList.lock.readLock();
+        readLock.lock();
+        try {
+            return watcherList.watchersByKey.get(key);
+        } finally {
+            readLock.unlock();
         }
     }
 
 
+    private WatcherList watcherList(WatchKey key) {
+        return watcherLists.get((key.hashCode() & Integer.MAX_VALUE) % watcherLists.size());
+    }
+
+
+    private class WatcherList {
+        private final Pool<WatchKey, Watchers> watchersByKey = new Pool<>(k -> new Watchers(k));
+
+        /**
+         *  监听和查询拿读锁, 删除 key 拿写锁
+         */
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    }
+
+
     public class Watchers {
         private WatchKey key;
 
@@ -219,7 +274,7 @@ public class DelayedOperationPurgatory<T extends DelayedOperation> {
             this.key = key;
         }
 
-        private ConcurrentLinkedQueue<T> operations = new ConcurrentLinkedQueue();
+        private ConcurrentLinkedQueue<T> operations = new ConcurrentLinkedQueue<>();
 
         public int countWatched() {
             return operations.size();
@@ -289,8 +344,8 @@ public class DelayedOperationPurgatory<T extends DelayedOperation> {
                 }
             }
 
-            if (operations.isEmpty()) ;
-            removeKeyIfEmpty(key, this);
+            if (operations.isEmpty())
+                removeKeyIfEmpty(key, this);
 
             return purged;
         }
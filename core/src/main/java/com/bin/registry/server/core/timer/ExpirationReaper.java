@@ -0,0 +1,39 @@
+package com.bin.registry.server.core.timer;
+
+/**
+ *  推进时间轮的线程, 每次最多等待 200ms 取出到期的 bucket
+ */
+public class ExpirationReaper extends Thread {
+
+    private final Timer timer;
+
+    /**
+     *  每轮推进之后执行, 例如清理已完成的监听
+     */
+    private final Runnable afterAdvance;
+
+    private volatile boolean running = true;
+
+    public ExpirationReaper(String name, Timer timer) {
+        this(name, timer, () -> { });
+    }
+
+    public ExpirationReaper(String name, Timer timer, Runnable afterAdvance) {
+        this.timer = timer;
+        this.afterAdvance = afterAdvance;
+        setName("ExpirationReaper-" + name);
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            timer.advanceClock(200L);
+            afterAdvance.run();
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+    }
+}
@@ -1,5 +1,7 @@
 package com.bin.registry.server.core.timer;
 
+import com.bin.registry.server.RegistryCenter;
+
 import java.util.concurrent.DelayQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -36,24 +38,24 @@ public interface Timer {
     void shutdown();
 
 
+    /**
+     *  单调时钟 System.nanoTime() / 1 000 000, 不受系统时间回拨影响
+     *  时间轮里的到期时间都基于这个时钟
+     */
+    static long hiResClockMs() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+
 
     class SystemTimer implements Timer{
-        /**
-         *  System.nanoTime() / 1 000 000
-         */
-       // static long hiResClockMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
-        static long hiResClockMs =   System.currentTimeMillis();
         private String executorName;
 
-
-        private ExecutorService taskExecutor = Executors.newFixedThreadPool(1, new ThreadFactory() {
-            @Override
-            public Thread newThread(Runnable r) {
-                Thread thread = new Thread(r,"executor-" + executorName);
-                thread.setDaemon(false);
-                return thread;
-            }
-        });
+        /**
+         *  到期任务按任务哈希分片到多个单线程执行器,
+         *  同一个任务总在同一个线程执行, 大量任务同时到期时并行执行
+         */
+        private ExecutorService[] taskExecutors;
 
         private DelayQueue<TimerTaskList> delayQueue = new DelayQueue<>();
 
@@ -62,6 +64,11 @@ public interface Timer {
        private TimingWheel timingWheel;
 
 
+        /**
+         * 每次推进都要用, 只创建一次
+         */
+        private final Consumer<TimerTaskEntry> reinsert = this::reinsert;
+
        private ReentrantReadWriteLock readWriteLock = new ReentrantReadWriteLock();
 
        private  ReentrantReadWriteLock.ReadLock readLock = readWriteLock.readLock();
@@ -69,14 +76,34 @@ public interface Timer {
 
 
         public SystemTimer(String executorName) {
-            this(executorName,1,40,hiResClockMs);
+            this(executorName,
+                    Long.parseLong(RegistryCenter.getProperty(RegistryCenter.TIMER_TICK_MS, "1")),
+                    Integer.parseInt(RegistryCenter.getProperty(RegistryCenter.TIMER_WHEEL_SIZE, "40")),
+                    Timer.hiResClockMs(),
+                    Integer.parseInt(RegistryCenter.getProperty(RegistryCenter.TIMER_EXECUTOR_THREADS,
+                            String.valueOf(Runtime.getRuntime().availableProcessors()))));
 
         }
 
         public SystemTimer(String executorName, long tickMs, int wheelSize, long startMs) {
+            this(executorName, tickMs, wheelSize, startMs, 1);
+        }
+
+        public SystemTimer(String executorName, long tickMs, int wheelSize, long startMs, int executorThreads) {
             this.executorName = executorName;
             timingWheel = new TimingWheel(tickMs, wheelSize, startMs, taskCounter, delayQueue);
-
+            taskExecutors = new ExecutorService[Math.max(1, executorThreads)];
+            for (int i = 0; i < taskExecutors.length; i++) {
+                String threadName = "executor-" + executorName + "-" + i;
+                taskExecutors[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, threadName);
+                        thread.setDaemon(false);
+                        return thread;
+                    }
+                });
+            }
         }
 
 
@@ -85,7 +112,11 @@ public interface Timer {
         public void add(TimerTask timerTask) {
             readLock.lock();
             try {
-                addTimerTaskEntry(new TimerTaskEntry(timerTask, timerTask.getDelayMs() + hiResClockMs));
+                long expirationMs = timerTask.getDelayMs() + Timer.hiResClockMs();
+                TimerTaskEntry entry = timerTask.recycleEntry(expirationMs);
+                if (entry == null)
+                    entry = new TimerTaskEntry(timerTask, expirationMs);
+                addTimerTaskEntry(entry);
             } finally {
                 readLock.unlock();
             }
@@ -96,10 +127,15 @@ public interface Timer {
                 // Already expired or cancelled
                 // 被取消
                 if (!timerTaskEntry.cancelled())
-                    taskExecutor.submit(timerTaskEntry.getTimerTask());
+                    execute(timerTaskEntry.getTimerTask());
             }
         }
 
+        private void execute(TimerTask timerTask) {
+            int shard = (timerTask.hashCode() & Integer.MAX_VALUE) % taskExecutors.length;
+            taskExecutors[shard].execute(timerTask);
+        }
+
         public void reinsert(TimerTaskEntry timerTaskEntry) {
             addTimerTaskEntry(timerTaskEntry);
         }
@@ -122,12 +158,7 @@ public interface Timer {
                 try {
                     while (bucket != null) {
                         timingWheel.advanceClock(bucket.getExpiration());
-                        bucket.flush(new Consumer<TimerTaskEntry>() {
-                            @Override
-                            public void accept(TimerTaskEntry timerTaskEntry) {
-                                reinsert(timerTaskEntry);
-                            }
-                        });
+                        bucket.flush(reinsert);
                         bucket = delayQueue.poll();
                     }
                 } finally {
@@ -146,7 +177,9 @@ public interface Timer {
 
         @Override
         public void shutdown() {
-            taskExecutor.shutdown();
+            for (ExecutorService taskExecutor : taskExecutors) {
+                taskExecutor.shutdown();
+            }
         }
     }
 
@@ -30,6 +30,25 @@ public abstract class TimerTask implements   Runnable{
     }
 
 
+    /**
+     * 重新加入时间轮时是否复用上一次的节点, 默认每次加入都新建节点
+     * 只有同一时刻最多一个线程加入的任务才能复用, 例如到期后自己重挂的心跳检查
+     */
+    protected boolean reuseEntry() {
+        return false;
+    }
+
+
+    /**
+     * 上一次的节点已经离开时间轮时改成新的到期时间后复用, 否则返回 null 由调用方新建
+     */
+    synchronized TimerTaskEntry recycleEntry(long expirationMs) {
+        if (!reuseEntry() || timerTaskEntry == null || !timerTaskEntry.recycle(expirationMs))
+            return null;
+        return timerTaskEntry;
+    }
+
+
     public TimerTaskEntry getTimerTaskEntry() {
         return timerTaskEntry;
     }
@@ -37,4 +56,11 @@ public abstract class TimerTask implements   Runnable{
     public long getDelayMs() {
         return delayMs;
     }
+
+    /**
+     * 重新加入时间轮前调整延迟, 任务到期后可以复用自己
+     */
+    public void setDelayMs(long delayMs) {
+        this.delayMs = delayMs;
+    }
 }
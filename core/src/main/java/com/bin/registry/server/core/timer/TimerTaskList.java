@@ -99,7 +99,7 @@ public class TimerTaskList implements Delayed {
     @Override
     public long getDelay(TimeUnit unit) {
         return unit.convert(Math.max(getExpiration() -
-                System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+                Timer.hiResClockMs(), 0), TimeUnit.MILLISECONDS);
     }
 
 
@@ -149,6 +149,18 @@ public class TimerTaskList implements Delayed {
             }
         }
 
+        /**
+         * 节点不在任何桶里时改成新的到期时间, 还在桶里时返回 false
+         */
+        boolean recycle(long expirationMs) {
+            synchronized (this) {
+                if (list != null)
+                    return false;
+                this.expirationMs = expirationMs;
+                return true;
+            }
+        }
+
         public long getExpirationMs() {
             return expirationMs;
         }
@@ -132,6 +132,9 @@ public class TimingWheel {
         // startMs = 当前时间戳 毫秒
         this.currentTime = startMs - (startMs % tickMs);
         this.buckets = new TimerTaskList[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            buckets[i] = new TimerTaskList(taskCounter);
+        }
     }
 
 
@@ -162,8 +165,6 @@ public class TimingWheel {
             // Put in its own bucket
             long virtualId = expiration / tickMs;
             TimerTaskList bucket = buckets[(int) (virtualId % wheelSize)];
-            if (bucket == null)
-                bucket = new TimerTaskList(taskCounter);
             bucket.add(timerTaskEntry);
 
             // Set the bucket expiration time
@@ -1,6 +1,7 @@
 package com.bin.registry.server.http;
 
 import com.bin.registry.server.common.utils.StringUtils;
+import com.bin.registry.server.core.NodeFilter;
 import com.bin.registry.server.core.NodeManager;
 import com.bin.registry.server.core.RegistryCenterApis;
 import com.bin.registry.server.model.HttpPath;
@@ -18,6 +19,8 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import static com.bin.registry.server.model.HttpPath.NODE_LISTS;
 
@@ -80,7 +83,7 @@ public class HttpServerHandler extends SimpleChannelInboundHandler<FullHttpReque
 
 
                     jsonResult = JsonResult.
-                            ok("success", NodeManager.fetchServerNode(serviceName,ip));
+                            ok("success", NodeManager.fetchServerNode(serviceName,ip, NodeFilter.of(parameterMap)));
                     break;
                 case NODE_CALLER:
 
@@ -94,16 +97,16 @@ public class HttpServerHandler extends SimpleChannelInboundHandler<FullHttpReque
                     break;
                 case NODE_OPEN:
 
-                    NodeManager.openNode(serviceName,ip);
-                    break;
+                    reply(channel, done(NodeManager.openNode(serviceName,ip)));
+                    return;
                 case NODE_CLOSE:
 
-                    NodeManager.closeNode(serviceName,ip);
-                    break;
+                    reply(channel, done(NodeManager.closeNode(serviceName,ip)));
+                    return;
                 case NODE_DELETE:
 
-                    NodeManager.deleteNode(serviceName,ip);
-                    break;
+                    reply(channel, done(NodeManager.deleteNode(serviceName,ip)));
+                    return;
             }
 
         } else if (httpMethod == HttpMethod.POST) {
@@ -112,11 +115,27 @@ public class HttpServerHandler extends SimpleChannelInboundHandler<FullHttpReque
             switch (httpPath) {
                 case REGISTRY_PATH:
 
-                    jsonResult = apis.registry(channel, nettyHttpRequest);
+                    reply(channel, apis.registry(channel, nettyHttpRequest));
+                    return;
+                case REGISTRY_BATCH_PATH:
+
+                    reply(channel, apis.registryBatch(channel, nettyHttpRequest));
+                    return;
+                case HEARTBEAT_PATH:
+
+                    jsonResult = apis.heartbeat(channel, nettyHttpRequest);
+                    break;
+                case HEARTBEAT_BATCH_PATH:
+
+                    jsonResult = apis.heartbeatBatch(channel, nettyHttpRequest);
                     break;
                 case DISCOVERY_PATH:
 
                     jsonResult = apis.discovery(channel, nettyHttpRequest);
+                    if (jsonResult == null) {
+                        // 长轮询挂起, 或者在等其他机房的实例, 完成时写回
+                        return;
+                    }
                     break;
             }
 
@@ -129,8 +148,30 @@ public class HttpServerHandler extends SimpleChannelInboundHandler<FullHttpReque
         if (jsonResult == null)
             jsonResult = JsonResult.ok();
 
-        channel.writeAndFlush(NettyHttpResponse.ok(jsonResult.toJson()));
+        channel.writeAndFlush(NettyHttpResponse.ok(jsonResult));
+
+    }
+
+    /**
+     * 注册, 上下线和删除在分区写线程里发布后再写回, I/O 线程不等待
+     */
+    private void reply(Channel channel, CompletableFuture<? extends JsonResult<?>> pending) {
+        pending.whenComplete((result, e) -> {
+            JsonResult<?> jsonResult = e == null ? result : JsonResult.failed(cause(e).getMessage(), false);
+            if (channel.eventLoop().inEventLoop()) {
+                channel.writeAndFlush(NettyHttpResponse.ok(jsonResult));
+            } else {
+                channel.eventLoop().execute(() -> channel.writeAndFlush(NettyHttpResponse.ok(jsonResult)));
+            }
+        });
+    }
+
+    private static CompletableFuture<JsonResult<Void>> done(CompletableFuture<Void> pending) {
+        return pending.thenApply(v -> new JsonResult<>(JsonResult.SUCCESS_CODE, JsonResult.SUCCESS_MESSAGE, null));
+    }
 
+    private static Throwable cause(Throwable e) {
+        return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
     }
 
     private void man(String uri, Channel channel) {
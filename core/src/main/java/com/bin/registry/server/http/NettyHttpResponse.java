@@ -1,5 +1,7 @@
 package com.bin.registry.server.http;
 
+import com.bin.registry.server.core.store.RecordJsonEncoder;
+import com.bin.registry.server.model.JsonResult;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
@@ -7,6 +9,8 @@ import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpVersion;
 
+import java.nio.charset.StandardCharsets;
+
 import static io.netty.handler.codec.http.HttpHeaderNames.*;
 
 public class NettyHttpResponse extends DefaultFullHttpResponse {
@@ -49,6 +53,17 @@ public class NettyHttpResponse extends DefaultFullHttpResponse {
         return make(HttpResponseStatus.OK,content);
     }
 
+    /**
+     *  实例列表直接拷贝存储里缓存的 json 字节, 不生成中间字符串
+     */
+    public static FullHttpResponse ok(JsonResult<?> result) {
+        ByteBuf buffer = BYTE_BUF_ALLOCATOR.buffer();
+        if (!RecordJsonEncoder.encode(result, buffer)) {
+            buffer.writeCharSequence(result.toJson(), StandardCharsets.UTF_8);
+        }
+        return new NettyHttpResponse(HttpResponseStatus.OK,buffer);
+    }
+
     private static FullHttpResponse make(HttpResponseStatus status,String content) {
         byte[] body = content.getBytes();
         ByteBuf buffer = BYTE_BUF_ALLOCATOR.buffer(body.length);
@@ -64,7 +79,8 @@ public class NettyHttpResponse extends DefaultFullHttpResponse {
         builder.append(protocolVersion().toString()).append(" ").append(status().toString()).append("\n");
         builder.append(CONTENT_TYPE).append(": ").append(headers().get(CONTENT_TYPE)).append("\n");
         builder.append(CONTENT_LENGTH).append(": ").append(headers().get(CONTENT_LENGTH)).append("\n");
-        builder.append("content-body").append(": ").append(content).append("\n");
+        builder.append("content-body").append(": ")
+                .append(content != null ? content : content().toString(StandardCharsets.UTF_8)).append("\n");
         return builder.toString();
     }
 }
@@ -1,5 +1,6 @@
 package com.bin.registry.server.http;
 
+import com.bin.registry.server.core.RegistryPartition;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
@@ -34,7 +35,8 @@ public class NettyHttpServer {
 
         ServerBootstrap bootstrap = new ServerBootstrap();
 
-        EventLoopGroup workerGroup = getEventLoopGroup(8);
+        // 每个 event loop 对应一个注册表分区的写线程
+        EventLoopGroup workerGroup = getEventLoopGroup(RegistryPartition.count());
 
         bootstrap.group(workerGroup);
 
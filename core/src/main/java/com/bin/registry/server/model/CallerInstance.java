@@ -1,12 +1,44 @@
 package com.bin.registry.server.model;
 
 
+import java.util.Map;
 import java.util.Set;
 
 public class CallerInstance {
     private String callerName;
     private  Set<String> serverInfo;
 
+    /**
+     * 客户端已持有的各服务版本号, 为空时按老协议直接返回全量
+     */
+    private Map<String, Long> revisions;
+
+    /**
+     * revisions 所属的纪元, 原样带回上次结果里的 epoch
+     * 和当前节点不一致(换了节点或者节点重启)时 revisions 作废, 返回全量; 为空时按老协议信任 revisions
+     */
+    private Long epoch;
+
+    /**
+     * 客户端已持有的各服务摘要, 摘要一致的服务只返回未变更标记
+     */
+    private Map<String, String> checksums;
+
+    /**
+     * 过滤条件, 例如 {"zone":"a","tags":"canary"}, 对所有订阅的服务生效
+     */
+    private Map<String, String> filters;
+
+    /**
+     * 长轮询挂起时间(毫秒), 0 表示立即返回
+     */
+    private long timeout;
+
+    /**
+     * 按 revisions 只返回增量变更
+     */
+    private boolean incremental;
+
     public String getCallerName() {
         return callerName;
     }
@@ -22,4 +54,52 @@ public class CallerInstance {
     public void setServerInfo(Set<String> serverInfo) {
         this.serverInfo = serverInfo;
     }
+
+    public Map<String, Long> getRevisions() {
+        return revisions;
+    }
+
+    public void setRevisions(Map<String, Long> revisions) {
+        this.revisions = revisions;
+    }
+
+    public Long getEpoch() {
+        return epoch;
+    }
+
+    public void setEpoch(Long epoch) {
+        this.epoch = epoch;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    public Map<String, String> getChecksums() {
+        return checksums;
+    }
+
+    public void setChecksums(Map<String, String> checksums) {
+        this.checksums = checksums;
+    }
+
+    public Map<String, String> getFilters() {
+        return filters;
+    }
+
+    public void setFilters(Map<String, String> filters) {
+        this.filters = filters;
+    }
 }
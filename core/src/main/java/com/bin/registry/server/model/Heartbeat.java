@@ -0,0 +1,40 @@
+package com.bin.registry.server.model;
+
+/**
+ *  批量心跳里的一个实例, ip 取连接的对端地址
+ */
+public class Heartbeat {
+
+    private String serviceName;
+
+    private Integer port;
+
+    /**
+     * 最近一次注册请求体的 md5, 可选
+     */
+    private String checksum;
+
+    public String getServiceName() {
+        return serviceName;
+    }
+
+    public void setServiceName(String serviceName) {
+        this.serviceName = serviceName;
+    }
+
+    public Integer getPort() {
+        return port;
+    }
+
+    public void setPort(Integer port) {
+        this.port = port;
+    }
+
+    public String getChecksum() {
+        return checksum;
+    }
+
+    public void setChecksum(String checksum) {
+        this.checksum = checksum;
+    }
+}
@@ -16,6 +16,9 @@ import java.util.Map;
  */
 public enum HttpPath {
     REGISTRY_PATH("post","/node/registry","服务注册"),
+    REGISTRY_BATCH_PATH("post","/node/registry/batch","批量服务注册"),
+    HEARTBEAT_PATH("post","/node/heartbeat","心跳上报"),
+    HEARTBEAT_BATCH_PATH("post","/node/heartbeat/batch","批量心跳上报"),
     DISCOVERY_PATH("post","/node/discovery","服务发现"),
     NODE_LISTS("get","/node/lists","页面展示"),
     NODES_SERVER("get","/node/server","服务查询"),
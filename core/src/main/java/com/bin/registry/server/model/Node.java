@@ -100,7 +100,7 @@ public class Node extends WatchKey implements Serializable {
     private String metadata;
 
     public boolean isActive() {
-       return running;
+       return Boolean.TRUE.equals(running);
     }
 
     public Long getServiceId() {
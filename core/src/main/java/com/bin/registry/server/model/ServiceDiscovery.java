@@ -0,0 +1,152 @@
+package com.bin.registry.server.model;
+
+import com.bin.registry.server.core.ServiceView;
+import com.bin.registry.server.core.store.InstanceRecord;
+
+import java.util.List;
+
+/**
+ *  带版本号的服务发现结果, 客户端下次轮询时带回 revision 和 epoch
+ *
+ *  notModified = true 表示客户端摘要与服务端一致, 不返回实例;
+ *  full = true 时 nodes 是全量实例,
+ *  否则只包含客户端 revision 之后的增量: added/modified 按实例覆盖, removed 是实例 key(ip:port)
+ */
+public class ServiceDiscovery {
+
+    private String serviceName;
+
+    private long revision;
+
+    /**
+     * revision 所属的纪元, 见 ServiceView.EPOCH
+     */
+    private long epoch = ServiceView.EPOCH;
+
+    private String checksum;
+
+    private boolean notModified;
+
+    private boolean full;
+
+    private List<InstanceRecord> nodes;
+
+    private List<InstanceRecord> added;
+
+    private List<InstanceRecord> modified;
+
+    private List<String> removed;
+
+    public ServiceDiscovery() {
+    }
+
+    public ServiceDiscovery(String serviceName, long revision, String checksum, List<InstanceRecord> nodes) {
+        this.serviceName = serviceName;
+        this.revision = revision;
+        this.checksum = checksum;
+        this.full = true;
+        this.nodes = nodes;
+    }
+
+    public static ServiceDiscovery notModified(String serviceName, long revision, String checksum) {
+        ServiceDiscovery discovery = new ServiceDiscovery();
+        discovery.serviceName = serviceName;
+        discovery.revision = revision;
+        discovery.checksum = checksum;
+        discovery.notModified = true;
+        return discovery;
+    }
+
+    public static ServiceDiscovery delta(String serviceName, long revision, String checksum,
+                                         List<InstanceRecord> added, List<InstanceRecord> modified, List<String> removed) {
+        ServiceDiscovery discovery = new ServiceDiscovery();
+        discovery.serviceName = serviceName;
+        discovery.revision = revision;
+        discovery.checksum = checksum;
+        discovery.full = false;
+        discovery.added = added;
+        discovery.modified = modified;
+        discovery.removed = removed;
+        return discovery;
+    }
+
+    public String getServiceName() {
+        return serviceName;
+    }
+
+    public void setServiceName(String serviceName) {
+        this.serviceName = serviceName;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public void setEpoch(long epoch) {
+        this.epoch = epoch;
+    }
+
+    public long getRevision() {
+        return revision;
+    }
+
+    public void setRevision(long revision) {
+        this.revision = revision;
+    }
+
+    public String getChecksum() {
+        return checksum;
+    }
+
+    public void setChecksum(String checksum) {
+        this.checksum = checksum;
+    }
+
+    public boolean isNotModified() {
+        return notModified;
+    }
+
+    public void setNotModified(boolean notModified) {
+        this.notModified = notModified;
+    }
+
+    public boolean isFull() {
+        return full;
+    }
+
+    public void setFull(boolean full) {
+        this.full = full;
+    }
+
+    public List<InstanceRecord> getNodes() {
+        return nodes;
+    }
+
+    public void setNodes(List<InstanceRecord> nodes) {
+        this.nodes = nodes;
+    }
+
+    public List<InstanceRecord> getAdded() {
+        return added;
+    }
+
+    public void setAdded(List<InstanceRecord> added) {
+        this.added = added;
+    }
+
+    public List<InstanceRecord> getModified() {
+        return modified;
+    }
+
+    public void setModified(List<InstanceRecord> modified) {
+        this.modified = modified;
+    }
+
+    public List<String> getRemoved() {
+        return removed;
+    }
+
+    public void setRemoved(List<String> removed) {
+        this.removed = removed;
+    }
+}
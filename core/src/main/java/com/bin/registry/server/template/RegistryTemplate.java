@@ -1,7 +1,7 @@
 package com.bin.registry.server.template;
 
 import com.bin.registry.server.core.NodeManager;
-import com.bin.registry.server.model.Node;
+import com.bin.registry.server.core.store.InstanceRecord;
 import freemarker.template.Configuration;
 import freemarker.template.Template;
 import freemarker.template.TemplateException;
@@ -35,9 +35,9 @@ public class RegistryTemplate {
 
     }
 
-    public  String getTemplate(List<Node> nodes) {
+    public  String getTemplate(List<InstanceRecord> nodes) {
         List<Map<String, Object>> map = new LinkedList<>();
-        for (Node node : nodes) {
+        for (InstanceRecord node : nodes) {
             Map<String, Object> item= new HashMap<>();
             item.put("clusterName", node.getClusterName());
             item.put("serviceName", node.getServiceName());
@@ -48,7 +48,7 @@ public class RegistryTemplate {
             item.put("port", node.getPort());
             item.put("pid", node.getPid());
             item.put("weight", node.getWeight());
-            item.put("onLineTime", node.getOnLineTime());
+            item.put("onLineTime", new Date(node.getOnLineTime()));
             item.put("heartbeatTime", new Date(node.getHeartbeatTime()));
             item.put("tags", node.getTags());
             item.put("metadata", node.getMetadata());
@@ -121,7 +121,7 @@ public class ClusterService implements MembershipListener {
         localMember = createLocalMember(localAddress);
         udpServer.start();
 
-        tcpConnection = new TcpConnectionManager();
+        tcpConnection = new TcpConnectionManager(config.transportConfig().connectTimeout());
         udpConnection = new UdpConnection();
         clusterFailureDetectorManager = new ClusterFailureDetectorManager(this);
         membershipManager = new MembershipManager(this);
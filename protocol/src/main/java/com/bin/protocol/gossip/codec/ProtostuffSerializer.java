@@ -28,27 +28,41 @@ public class ProtostuffSerializer {
             = new ConcurrentHashMap<>(16);
 
 
-   private static final Schema<Operation> operationSchema
-            = RuntimeSchema.getSchema(Operation.class);
+    /**
+     * Operation 是抽象类, 不能直接作为根对象; 包一层后 protostuff 按字段的实际类型写入类名
+     */
+    private static final Schema<Envelope> envelopeSchema
+            = RuntimeSchema.getSchema(Envelope.class);
 
     public static Operation readOperation(ByteBuf byteBuf) throws IOException {
         Input input = new ByteBufInput(byteBuf, true);
-        Operation operation = operationSchema.newMessage();
-        operationSchema.mergeFrom(input,operation);
-        return operation;
+        Envelope envelope = envelopeSchema.newMessage();
+        envelopeSchema.mergeFrom(input,envelope);
+        return envelope.operation;
     }
 
 
+    /**
+     * [int 长度(小端, 不含自身)][operation]
+     */
     public static ByteBuf writeOperation(int initSize,Operation op) throws IOException {
         ByteBuf buffer = ByteBufAllocator.DEFAULT.buffer(initSize);
-        buffer.writeIntLE(1);
+        buffer.writeIntLE(0);
         ByteBufOutput output = new ByteBufOutput(buffer);
-        operationSchema.writeTo(output,op);
-        buffer.writeIntLE(buffer.readableBytes() - 4);
+        Envelope envelope = new Envelope();
+        envelope.operation = op;
+        envelopeSchema.writeTo(output,envelope);
+        buffer.setIntLE(0, buffer.readableBytes() - 4);
         return buffer;
     }
 
 
+    private static final class Envelope {
+
+        private Operation operation;
+    }
+
+
 
     private <T> Schema<T> schema(Class<T> clazz) {
         Schema<T> schema = (Schema<T>) schemaMap.get(clazz);
@@ -1,28 +1,179 @@
 package com.bin.protocol.gossip.network.nio;
 
+import io.netty.buffer.ByteBuf;
+
 import java.io.IOException;
 import java.net.SocketAddress;
-import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
 
+/**
+ *  一个对端的 tcp 连接, 多个线程共用
+ *
+ *  send 先直接写, 写不完的帧排进队列, 由 TcpConnectionManager 的选择器线程在 OP_WRITE 时写完;
+ *  发送线程只在入队时短暂持锁, 不会因为对端不读而自旋等待
+ *  积压超过 HIGH_WATER_MARK 或者 WRITE_TIMEOUT_MS 内没有写出任何字节就关闭连接, 下次发送重连
+ */
 public class NioTcpConnection {
+
+    static final int HIGH_WATER_MARK = 4 * 1024 * 1024;
+
+    static final long WRITE_TIMEOUT_MS = 10_000;
+
     SocketChannel socketChannel;
 
+    /**
+     * 待写出的帧, 按发送顺序, 一帧不会和别的帧交错
+     */
+    private final Deque<ByteBuf> pending = new ArrayDeque<>();
+
+    private int pendingBytes;
 
-    public NioTcpConnection(SocketAddress socketAddress) throws IOException {
+    /**
+     * 队列非空后最近一次写出字节的时间, 0 表示没有积压
+     */
+    private long lastProgress;
+
+    private SelectionKey key;
+
+    private volatile boolean closed;
+
+
+    public NioTcpConnection(SocketAddress socketAddress, int connectTimeout) throws IOException {
         socketChannel = SocketChannel.open();
-        socketChannel.connect(socketAddress);
-        socketChannel.configureBlocking(false);
+        try {
+            socketChannel.socket().connect(socketAddress, connectTimeout);
+            socketChannel.configureBlocking(false);
+        } catch (IOException e) {
+            socketChannel.close();
+            throw e;
+        }
+    }
+
+
+    /**
+     * 发送一帧, 发送完成或者连接关闭后释放 frame
+     *
+     * @return 是否有未写完的字节, 需要选择器关注 OP_WRITE
+     */
+    synchronized boolean send(ByteBuf frame) throws IOException {
+        if (closed) {
+            frame.release();
+            throw new ClosedChannelException();
+        }
+        if (pending.isEmpty()) {
+            try {
+                frame.readBytes(socketChannel, frame.readableBytes());
+            } catch (IOException e) {
+                frame.release();
+                close();
+                throw e;
+            }
+            if (!frame.isReadable()) {
+                frame.release();
+                return false;
+            }
+            lastProgress = System.currentTimeMillis();
+        }
+        if (pendingBytes + frame.readableBytes() > HIGH_WATER_MARK) {
+            frame.release();
+            close();
+            throw new IOException("write backlog to " + socketChannel.socket().getRemoteSocketAddress()
+                    + " exceeds " + HIGH_WATER_MARK + " bytes");
+        }
+        pending.add(frame);
+        pendingBytes += frame.readableBytes();
+        return pending.size() == 1;
+    }
+
+
+    /**
+     * 选择器线程调用, 关注 OP_WRITE
+     */
+    synchronized void interestWrite(Selector selector) {
+        if (closed || pending.isEmpty()) {
+            return;
+        }
+        try {
+            if (key == null) {
+                key = socketChannel.register(selector, SelectionKey.OP_WRITE, this);
+            } else {
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+        } catch (ClosedChannelException e) {
+            close();
+        }
+    }
+
+
+    /**
+     * 选择器线程在可写时调用, 尽量写出积压的帧, 写空后取消 OP_WRITE
+     */
+    synchronized void flush() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            while (!pending.isEmpty()) {
+                ByteBuf frame = pending.peek();
+                int written = frame.readBytes(socketChannel, frame.readableBytes());
+                if (written > 0) {
+                    pendingBytes -= written;
+                    lastProgress = System.currentTimeMillis();
+                }
+                if (frame.isReadable()) {
+                    return;
+                }
+                pending.poll().release();
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        lastProgress = 0;
+        if (key != null && key.isValid()) {
+            key.interestOps(0);
+        }
+    }
+
 
+    /**
+     * 积压超时没有进展就关闭
+     *
+     * @return 是否因为超时关闭
+     */
+    synchronized boolean expire(long now) {
+        if (closed || lastProgress == 0 || now - lastProgress <= WRITE_TIMEOUT_MS) {
+            return false;
+        }
+        close();
+        return true;
     }
 
 
-    public void send(ByteBuffer buffer) throws IOException {
-        socketChannel.write(buffer);
+    boolean isClosed() {
+        return closed;
     }
 
 
-    public void close() throws IOException {
-        socketChannel.close();
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (ByteBuf frame : pending) {
+            frame.release();
+        }
+        pending.clear();
+        pendingBytes = 0;
+        lastProgress = 0;
+        try {
+            socketChannel.close();
+        } catch (IOException ignored) {
+        }
     }
 }
@@ -9,17 +9,51 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 
 public class TcpConnectionManager implements Connection {
     private final Logger logger = LoggerFactory.getLogger(TcpConnectionManager.class);
 
+    private static final long SELECT_TIMEOUT_MS = 1_000;
+
 
     private ConcurrentMap<Address, NioTcpConnection> connections = new ConcurrentHashMap<>();
 
+    private final int connectTimeout;
+
+    /**
+     * 写不完的连接由这个选择器等 OP_WRITE 写完
+     */
+    private final Selector selector;
+
+    /**
+     * 等待选择器线程关注 OP_WRITE 的连接, 注册只在选择器线程上做
+     */
+    private final Queue<NioTcpConnection> interests = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean running = true;
+
+
+    public TcpConnectionManager(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+        try {
+            selector = Selector.open();
+        } catch (IOException e) {
+            throw new UncheckedIOException("open selector fail", e);
+        }
+        Thread writer = new Thread(this::writeLoop, "gossip-tcp-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
 
 
     public void send(Address address, Operation op) throws IOException {
@@ -29,18 +63,24 @@ public class TcpConnectionManager implements Connection {
             throw new IOException("new Connection connect address[ " + address + "] fail");
         }
         ByteBuf byteBuf = ProtostuffSerializer.writeOperation(1024 * 2, op);
-        tcpConnection.send(byteBuf.nioBuffer());
+        try {
+            if (tcpConnection.send(byteBuf)) {
+                interests.add(tcpConnection);
+                selector.wakeup();
+            }
+        } catch (IOException e) {
+            connections.remove(address, tcpConnection);
+            throw e;
+        }
     }
 
 
     public void close() {
+        running = false;
+        selector.wakeup();
         Collection<NioTcpConnection> values = connections.values();
         for (NioTcpConnection tcpConnection : values) {
-            try {
-                tcpConnection.close();
-            } catch (IOException e) {
-                logger.error("Connection close fail", e);
-            }
+            tcpConnection.close();
         }
     }
 
@@ -48,11 +88,51 @@ public class TcpConnectionManager implements Connection {
     public NioTcpConnection connect(Address address) {
         InetSocketAddress target = new InetSocketAddress(address.host(), address.port());
         try {
-            return new NioTcpConnection(target);
+            return new NioTcpConnection(target, connectTimeout);
         } catch (IOException e) {
             logger.error("new Connection connect address[{}] fail", address, e);
         }
         return null;
     }
 
+
+    private void writeLoop() {
+        while (running) {
+            try {
+                selector.select(SELECT_TIMEOUT_MS);
+                NioTcpConnection interest;
+                while ((interest = interests.poll()) != null) {
+                    interest.interestWrite(selector);
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioTcpConnection tcpConnection = (NioTcpConnection) key.attachment();
+                    if (key.isValid() && key.isWritable()) {
+                        try {
+                            tcpConnection.flush();
+                        } catch (IOException e) {
+                            logger.warn("Connection write fail, close it", e);
+                        }
+                    }
+                }
+                long now = System.currentTimeMillis();
+                for (NioTcpConnection tcpConnection : connections.values()) {
+                    if (tcpConnection.expire(now)) {
+                        logger.warn("Connection write stalled over {}ms, close it", NioTcpConnection.WRITE_TIMEOUT_MS);
+                    }
+                }
+                connections.values().removeIf(NioTcpConnection::isClosed);
+            } catch (Throwable e) {
+                logger.error("Connection write loop fail", e);
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logger.error("Selector close fail", e);
+        }
+    }
+
 }